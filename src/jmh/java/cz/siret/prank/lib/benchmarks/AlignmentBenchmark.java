@@ -0,0 +1,123 @@
+package cz.siret.prank.lib.benchmarks;
+
+import org.biojava.nbio.structure.Group;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import cz.siret.prank.lib.ChainScores;
+import cz.siret.prank.lib.ConservationScore;
+import cz.siret.prank.lib.ProteinIndex;
+import cz.siret.prank.lib.utils.BioUtils;
+import cz.siret.prank.lib.utils.LongDoubleHashMap;
+import cz.siret.prank.lib.utils.LongestCommonSubsequence;
+import cz.siret.prank.lib.utils.ResidueAlphabet;
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * Alignment of chain sequences to score file sequences with about 5% differences.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AlignmentBenchmark {
+
+    @Param({"100", "500", "2000"})
+    public int chainLength;
+
+    private Path dir;
+    private List<Group> groups;
+    private byte[] chainCodes;
+    private byte[] scoreCodes;
+    private ChainScores chainScores;
+    private ChainScores identicalScores;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures fixtures = new Fixtures(chainLength);
+        int[] sequence = fixtures.randomSequence(chainLength);
+        dir = Fixtures.createTempDir();
+        File pdbFile = dir.resolve("align.pdb").toFile();
+        fixtures.writePdb(pdbFile, sequence);
+        ProteinIndex.ProteinChain chain = ProteinIndex.of(
+                BioUtils.INSTANCE.loadPdbFile(pdbFile)).getChains().get(0);
+        groups = chain.getGroups();
+        chainCodes = chain.getCodes();
+
+        String scoreSequence = Fixtures.letters(fixtures.mutate(sequence));
+        scoreCodes = new byte[scoreSequence.length()];
+        double[] scores = new double[scoreCodes.length];
+        int[] indices = new int[scoreCodes.length];
+        for (int i = 0; i < scoreCodes.length; i++) {
+            scoreCodes[i] = ResidueAlphabet.INSTANCE.encode(scoreSequence.charAt(i));
+            scores[i] = i / (double) scoreCodes.length;
+            indices[i] = i;
+        }
+        chainScores = new ChainScores(scoreCodes, scores, indices);
+
+        double[] identical = new double[chainCodes.length];
+        int[] identicalIndices = new int[chainCodes.length];
+        for (int i = 0; i < chainCodes.length; i++) {
+            identical[i] = i / (double) chainCodes.length;
+            identicalIndices[i] = i;
+        }
+        identicalScores = new ChainScores(chainCodes.clone(), identical, identicalIndices);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Utils.INSTANCE.deleteDirRecursively(dir);
+    }
+
+    /**
+     * Full DP table, the baseline for {@link #align()}.
+     */
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public int[][] calcLongestCommonSubSequence() {
+        return ConservationScore.calcLongestCommonSubSequence(chainCodes, scoreCodes);
+    }
+
+    @Benchmark
+    public int[] align() {
+        return LongestCommonSubsequence.INSTANCE.align(chainCodes, scoreCodes);
+    }
+
+    /**
+     * LCS alignment and mapping of the scores to residue keys.
+     */
+    @Benchmark
+    public LongDoubleHashMap matchSequences() {
+        LongDoubleHashMap result = new LongDoubleHashMap(groups.size());
+        ConservationScore.matchSequences(groups, chainCodes, chainScores, result);
+        return result;
+    }
+
+    /**
+     * Mapping only, the score file has the sequence of the chain.
+     */
+    @Benchmark
+    public LongDoubleHashMap matchIdenticalSequences() {
+        LongDoubleHashMap result = new LongDoubleHashMap(groups.size());
+        ConservationScore.matchSequences(groups, chainCodes, identicalScores, result);
+        return result;
+    }
+}
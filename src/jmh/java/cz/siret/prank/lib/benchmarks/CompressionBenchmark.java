@@ -0,0 +1,81 @@
+package cz.siret.prank.lib.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipOutputStream;
+
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * Compressing text-like files of 1 MB (single threaded gzip) and 16 MB (parallel gzip), and
+ * repacking a zip archive of the same size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final int ZIP_ENTRY_SIZE = 64 * 1024;
+
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    private Path dir;
+    private File textFile;
+    private File zipFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures fixtures = new Fixtures(size);
+        dir = Fixtures.createTempDir();
+        textFile = dir.resolve("data.txt").toFile();
+        fixtures.writeText(textFile, size);
+        zipFile = dir.resolve("archive.zip").toFile();
+        fixtures.writeZip(zipFile, size / ZIP_ENTRY_SIZE, ZIP_ENTRY_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Utils.INSTANCE.deleteDirRecursively(dir);
+    }
+
+    @Benchmark
+    public void gzipFile() throws IOException {
+        Utils.INSTANCE.gzipFile(textFile);
+    }
+
+    @Benchmark
+    public void packZipArchive() throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new NullOutputStream())) {
+            Utils.INSTANCE.packZipArchive(out, zipFile, "folder");
+        }
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package cz.siret.prank.lib.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import cz.siret.prank.lib.ConservationScore;
+
+/**
+ * Generates benchmark input files, deterministically for a given seed.
+ */
+final class Fixtures {
+    private static final String LETTERS = "ACDEFGHIKLMNPQRSTVWY";
+    private static final String[] NAMES = {"ALA", "CYS", "ASP", "GLU", "PHE", "GLY", "HIS",
+            "ILE", "LYS", "LEU", "MET", "ASN", "PRO", "GLN", "ARG", "SER", "THR", "VAL", "TRP",
+            "TYR"};
+    private static final String[] BACKBONE = {"N", "CA", "C", "O"};
+
+    private final Random random;
+
+    Fixtures(long seed) {
+        this.random = new Random(seed);
+    }
+
+    static Path createTempDir() throws IOException {
+        return Files.createTempDirectory("pranklib-jmh");
+    }
+
+    /**
+     * @return Random residue indices into {@link #LETTERS}.
+     */
+    int[] randomSequence(int length) {
+        int[] sequence = new int[length];
+        for (int i = 0; i < length; i++) {
+            sequence[i] = random.nextInt(LETTERS.length());
+        }
+        return sequence;
+    }
+
+    /**
+     * @return The sequence with about one residue in twenty deleted or substituted, so that
+     * aligning it to the original needs the full LCS.
+     */
+    int[] mutate(int[] sequence) {
+        int[] result = new int[sequence.length];
+        int length = 0;
+        for (int residue : sequence) {
+            int roll = random.nextInt(40);
+            if (roll == 0) continue;
+            result[length++] = roll == 1 ? random.nextInt(LETTERS.length()) : residue;
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    static String letters(int[] sequence) {
+        StringBuilder result = new StringBuilder(sequence.length);
+        for (int residue : sequence) {
+            result.append(LETTERS.charAt(residue));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Writes a PDB file with backbone atoms of the given chains, named A, B, ...
+     */
+    void writePdb(File file, int[]... chains) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+            out.printf(Locale.US, "HEADER    BENCHMARK%40s   1BEN%n", "01-JAN-00");
+            int serial = 1;
+            for (int c = 0; c < chains.length; c++) {
+                char chainId = (char) ('A' + c);
+                double x = 0;
+                double y = c * 20;
+                double z = 0;
+                for (int i = 0; i < chains[c].length; i++) {
+                    for (String atom : BACKBONE) {
+                        x += 1.2 + random.nextDouble() * 0.2;
+                        z = Math.sin(x / 5) * 3;
+                        out.printf(Locale.US,
+                                "ATOM  %5d  %-3s %3s %c%4d    %8.3f%8.3f%8.3f%6.2f%6.2f"
+                                        + "           %c%n",
+                                serial++, atom, NAMES[chains[c][i]], chainId, i + 1, x, y, z,
+                                1.0, 0.0, atom.charAt(0));
+                    }
+                }
+                out.printf(Locale.US, "TER   %5d      %3s %c%4d%n", serial++,
+                        NAMES[chains[c][chains[c].length - 1]], chainId, chains[c].length);
+            }
+            out.println("END");
+        }
+    }
+
+    /**
+     * Writes conservation scores of a chain in a text score format.
+     */
+    void writeScores(File file, int[] sequence, ConservationScore.ScoreFormat format)
+            throws IOException {
+        try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+            out.println("# Benchmark scores");
+            for (int i = 0; i < sequence.length; i++) {
+                double score = random.nextDouble();
+                char letter = LETTERS.charAt(sequence[i]);
+                if (format == ConservationScore.ScoreFormat.ConCavityFormat) {
+                    out.printf(Locale.US, "%d\t%c\t%.5f%n", i, letter, score);
+                } else {
+                    out.printf(Locale.US, "%d\t%.5f\t%c%n", i, score, letter);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a P2Rank predictions CSV with pockets of decreasing score.
+     */
+    void writePredictions(File file, int pockets, int chainLength) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+            out.println("name,rank,score,connolly_points,surf_atoms,center_x,center_y,center_z,"
+                    + "residue_ids,surf_atom_ids");
+            for (int rank = 1; rank <= pockets; rank++) {
+                int residues = 5 + random.nextInt(30);
+                int atoms = residues * 4;
+                out.printf(Locale.US, "pocket%d,%d,%.2f,%d,%d,%.4f,%.4f,%.4f,", rank, rank,
+                        100.0 / rank, atoms * 3, atoms, random.nextDouble() * 50,
+                        random.nextDouble() * 50, random.nextDouble() * 50);
+                int first = random.nextInt(Math.max(1, chainLength - residues)) + 1;
+                for (int i = 0; i < residues; i++) {
+                    if (i > 0) out.print(' ');
+                    out.print("A_" + (first + i));
+                }
+                out.print(',');
+                for (int i = 0; i < atoms; i++) {
+                    if (i > 0) out.print(' ');
+                    out.print((first - 1) * 4 + i + 1);
+                }
+                out.println();
+            }
+        }
+    }
+
+    /**
+     * Writes a file of the given size with compressible, text-like content.
+     */
+    void writeText(File file, int size) throws IOException {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i % 81 == 80 ? '\n' : LETTERS.charAt(random.nextInt(4)));
+        }
+        Files.write(file.toPath(), data);
+    }
+
+    /**
+     * Writes a zip archive with the given number of text entries.
+     */
+    void writeZip(File file, int entries, int entrySize) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < entries; i++) {
+                out.putNextEntry(new ZipEntry("entry" + i + ".txt"));
+                StringBuilder text = new StringBuilder(entrySize);
+                while (text.length() < entrySize) {
+                    text.append(LETTERS.charAt(random.nextInt(4)));
+                }
+                out.write(text.toString().getBytes(StandardCharsets.US_ASCII));
+                out.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package cz.siret.prank.lib.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import cz.siret.prank.lib.Pocket;
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * Parsing P2Rank predictions held in memory, all pockets and the top 10.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PocketBenchmark {
+
+    @Param({"20", "200"})
+    public int pockets;
+
+    private byte[] predictions;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path dir = Fixtures.createTempDir();
+        try {
+            File file = dir.resolve("protein.pdb_predictions.csv").toFile();
+            new Fixtures(pockets).writePredictions(file, pockets, 1000);
+            predictions = Files.readAllBytes(file.toPath());
+        } finally {
+            Utils.INSTANCE.deleteDirRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    public List<Pocket> parseCSVPrediction() {
+        return Pocket.parseCSVPrediction(new ByteArrayInputStream(predictions));
+    }
+
+    @Benchmark
+    public List<Pocket> parseCSVPredictionTop10() {
+        return Pocket.parseCSVPrediction(new ByteArrayInputStream(predictions), 10);
+    }
+}
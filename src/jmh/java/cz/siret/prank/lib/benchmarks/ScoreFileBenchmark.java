@@ -0,0 +1,73 @@
+package cz.siret.prank.lib.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import cz.siret.prank.lib.BinaryScoreFile;
+import cz.siret.prank.lib.ChainScores;
+import cz.siret.prank.lib.ConservationScore;
+import cz.siret.prank.lib.ScoreFileParser;
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * Loading score files of a 1000 residue chain, bypassing the score file cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScoreFileBenchmark {
+    private static final int CHAIN_LENGTH = 1000;
+
+    @Param({"JSDFormat", "ConCavityFormat"})
+    public ConservationScore.ScoreFormat format;
+
+    private Path dir;
+    private File textFile;
+    private File binaryFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures fixtures = new Fixtures(CHAIN_LENGTH);
+        dir = Fixtures.createTempDir();
+        textFile = dir.resolve("scores.hom").toFile();
+        fixtures.writeScores(textFile, fixtures.randomSequence(CHAIN_LENGTH), format);
+        binaryFile = dir.resolve(BinaryScoreFile.binaryName(textFile.getName())).toFile();
+        BinaryScoreFile.convert(textFile, format, binaryFile);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Utils.INSTANCE.deleteDirRecursively(dir);
+    }
+
+    @Benchmark
+    public ChainScores parseText() throws IOException {
+        try (InputStream in = Utils.INSTANCE.readFile(textFile)) {
+            return ScoreFileParser.parse(in, format);
+        }
+    }
+
+    @Benchmark
+    public ChainScores readBinary() throws IOException {
+        return BinaryScoreFile.read(binaryFile);
+    }
+}
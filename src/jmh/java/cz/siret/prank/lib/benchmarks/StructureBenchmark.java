@@ -0,0 +1,116 @@
+package cz.siret.prank.lib.benchmarks;
+
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.Structure;
+import org.biojava.nbio.structure.StructureException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import cz.siret.prank.lib.ConservationScore;
+import cz.siret.prank.lib.ProteinIndex;
+import cz.siret.prank.lib.ResidueNumberWrapper;
+import cz.siret.prank.lib.Sequence;
+import cz.siret.prank.lib.utils.BioUtils;
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * PDB parsing, FASTA extraction and sequence building for a homodimer plus a distinct
+ * chain, without the structure cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StructureBenchmark {
+
+    @Param({"300", "1500"})
+    public int chainLength;
+
+    private Path dir;
+    private File pdbFile;
+    private Structure structure;
+    private ProteinIndex protein;
+    private ConservationScore score;
+    private Set<ResidueNumberWrapper> bindingSites;
+
+    @Setup
+    public void setUp() throws IOException {
+        BioUtils.INSTANCE.setStructureCache(null);
+        Fixtures fixtures = new Fixtures(chainLength);
+        int[] dimer = fixtures.randomSequence(chainLength);
+        int[] other = fixtures.randomSequence(chainLength / 2);
+        dir = Fixtures.createTempDir();
+        pdbFile = dir.resolve("protein.pdb").toFile();
+        fixtures.writePdb(pdbFile, dimer, dimer, other);
+        structure = BioUtils.INSTANCE.loadPdbFile(pdbFile);
+        protein = ProteinIndex.of(structure);
+
+        String[] chainIds = {"A", "B", "C"};
+        int[][] sequences = {dimer, dimer, other};
+        for (int i = 0; i < chainIds.length; i++) {
+            fixtures.writeScores(dir.resolve("protein" + chainIds[i] + ".hom").toFile(),
+                    fixtures.mutate(sequences[i]), ConservationScore.ScoreFormat.JSDFormat);
+        }
+        score = ConservationScore.fromFiles(protein,
+                chainId -> dir.resolve("protein" + chainId + ".hom").toFile(),
+                ConservationScore.ScoreFormat.JSDFormat);
+
+        bindingSites = new HashSet<>();
+        List<Group> groups = protein.getChains().get(0).getGroups();
+        for (int i = 0; i < groups.size(); i += 10) {
+            bindingSites.add(new ResidueNumberWrapper(groups.get(i).getResidueNumber()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Utils.INSTANCE.deleteDirRecursively(dir);
+    }
+
+    @Benchmark
+    public Structure loadPdbFile() throws IOException {
+        return BioUtils.INSTANCE.loadPdbFile(pdbFile);
+    }
+
+    @Benchmark
+    public Map<String, String> pdbToFastaFromFile() throws IOException, StructureException {
+        return BioUtils.INSTANCE.pdbToFasta(pdbFile);
+    }
+
+    @Benchmark
+    public Map<String, String> pdbToFastaFromStructure() throws IOException,
+            StructureException {
+        return BioUtils.INSTANCE.pdbToFasta(structure, null);
+    }
+
+    @Benchmark
+    public Sequence fromStructure() {
+        return Sequence.fromStructure(structure, score, bindingSites);
+    }
+
+    @Benchmark
+    public Sequence fromProteinIndex() {
+        return Sequence.fromStructure(protein, score, bindingSites);
+    }
+}
@@ -0,0 +1,375 @@
+package cz.siret.prank.lib;
+
+import org.biojava.nbio.structure.StructureException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * Runs many {@link Main} commands in one JVM, several at a time, and writes one JSON result
+ * record per job, in manifest order.
+ *
+ * Every manifest line is a job, either tab separated (id, command, arguments) or a JSON
+ * object such as {"id": "1abc", "args": ["getproteinsize", "1abc.pdb"]}. Blank lines and
+ * lines starting with # are skipped. Jobs without an id get their line number. Result
+ * records hold the id, the command, its exit code and what it printed to stdout and stderr.
+ * Jobs that fail to read their input have exit code 1, so do malformed manifest lines, with
+ * the line number as the id and the parse error on stderr.
+ */
+public class Batch {
+
+    public static final class Job {
+        private final String id;
+        private final String[] args;
+        private final String error;
+
+        public Job(String id, String[] args) {
+            this(id, args, null);
+        }
+
+        private Job(String id, String[] args, String error) {
+            this.id = id;
+            this.args = args;
+            this.error = error;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String[] getArgs() {
+            return args;
+        }
+
+        /**
+         * @return Why the manifest line of the job could not be parsed, null if it could.
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    public static final class Result {
+        private final String id;
+        private final String command;
+        private final int exitCode;
+        private final String output;
+        private final String error;
+
+        private Result(String id, String command, int exitCode, String output, String error) {
+            this.id = id;
+            this.command = command;
+            this.exitCode = exitCode;
+            this.output = output;
+            this.error = error;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Reads jobs from a manifest one line at a time.
+     */
+    public static final class ManifestReader implements Closeable {
+        private final BufferedReader reader;
+        private int lineNumber;
+
+        public ManifestReader(File manifest) throws IOException {
+            this.reader = new BufferedReader(new InputStreamReader(
+                    Utils.INSTANCE.readFile(manifest), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @return The next job, null at the end of the manifest. A malformed line gives a job
+         * with an error, see {@link Job#getError()}.
+         */
+        public Job next() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+                try {
+                    Job job = trimmed.startsWith("{") ? parseJson(trimmed) : parseTsv(line);
+                    if (job.args.length == 0 || job.args[0].isEmpty()) {
+                        throw malformed("no command");
+                    }
+                    return job;
+                } catch (MalformedLineException e) {
+                    return new Job(Integer.toString(lineNumber), new String[0], e.getMessage());
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+
+        private Job parseTsv(String line) throws IOException {
+            String[] columns = line.split("\t", -1);
+            if (columns.length < 2) {
+                throw malformed("expected an id and a command separated by a tab");
+            }
+            String[] args = new String[columns.length - 1];
+            System.arraycopy(columns, 1, args, 0, args.length);
+            String id = columns[0].trim();
+            return new Job(id.isEmpty() ? Integer.toString(lineNumber) : id, args);
+        }
+
+        /**
+         * Parses an object with a string or number "id" and an "args" array of strings and
+         * numbers. Other members are ignored if they are strings, numbers or literals.
+         */
+        private Job parseJson(String line) throws IOException {
+            int[] position = {1};
+            String id = Integer.toString(lineNumber);
+            String[] args = null;
+            skipBlanks(line, position);
+            if (peek(line, position) == '}') {
+                position[0]++;
+            } else {
+                while (true) {
+                    skipBlanks(line, position);
+                    String name = parseString(line, position);
+                    skipBlanks(line, position);
+                    expect(line, position, ':');
+                    skipBlanks(line, position);
+                    if (name.equals("args")) {
+                        args = parseStringArray(line, position);
+                    } else if (name.equals("id")) {
+                        id = parseScalar(line, position);
+                    } else {
+                        parseScalar(line, position);
+                    }
+                    skipBlanks(line, position);
+                    char c = peek(line, position);
+                    position[0]++;
+                    if (c == '}') break;
+                    if (c != ',') throw malformed("expected , or }");
+                }
+            }
+            skipBlanks(line, position);
+            if (position[0] != line.length()) throw malformed("text after the object");
+            if (args == null) throw malformed("missing args");
+            return new Job(id, args);
+        }
+
+        private String[] parseStringArray(String line, int[] position) throws IOException {
+            expect(line, position, '[');
+            List<String> values = new ArrayList<>();
+            skipBlanks(line, position);
+            if (peek(line, position) == ']') {
+                position[0]++;
+                return new String[0];
+            }
+            while (true) {
+                skipBlanks(line, position);
+                values.add(parseScalar(line, position));
+                skipBlanks(line, position);
+                char c = peek(line, position);
+                position[0]++;
+                if (c == ']') break;
+                if (c != ',') throw malformed("expected , or ]");
+            }
+            return values.toArray(new String[0]);
+        }
+
+        /**
+         * @return A string, or the text of a number or literal.
+         */
+        private String parseScalar(String line, int[] position) throws IOException {
+            if (peek(line, position) == '"') return parseString(line, position);
+            int start = position[0];
+            while (position[0] < line.length()
+                    && ",]} \t".indexOf(line.charAt(position[0])) < 0) {
+                position[0]++;
+            }
+            if (start == position[0]) throw malformed("expected a value");
+            return line.substring(start, position[0]);
+        }
+
+        private String parseString(String line, int[] position) throws IOException {
+            expect(line, position, '"');
+            StringBuilder result = new StringBuilder();
+            while (true) {
+                if (position[0] >= line.length()) throw malformed("unterminated string");
+                char c = line.charAt(position[0]++);
+                if (c == '"') return result.toString();
+                if (c != '\\') {
+                    result.append(c);
+                    continue;
+                }
+                if (position[0] >= line.length()) throw malformed("unterminated string");
+                char escaped = line.charAt(position[0]++);
+                switch (escaped) {
+                    case 'b': result.append('\b'); break;
+                    case 'f': result.append('\f'); break;
+                    case 'n': result.append('\n'); break;
+                    case 'r': result.append('\r'); break;
+                    case 't': result.append('\t'); break;
+                    case 'u':
+                        if (position[0] + 4 > line.length()) throw malformed("bad escape");
+                        try {
+                            result.append((char) Integer.parseInt(
+                                    line.substring(position[0], position[0] + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw malformed("bad escape");
+                        }
+                        position[0] += 4;
+                        break;
+                    default: result.append(escaped);
+                }
+            }
+        }
+
+        private char peek(String line, int[] position) throws IOException {
+            if (position[0] >= line.length()) throw malformed("unexpected end of line");
+            return line.charAt(position[0]);
+        }
+
+        private void expect(String line, int[] position, char expected) throws IOException {
+            if (peek(line, position) != expected) throw malformed("expected " + expected);
+            position[0]++;
+        }
+
+        private static void skipBlanks(String line, int[] position) {
+            while (position[0] < line.length()
+                    && Character.isWhitespace(line.charAt(position[0]))) {
+                position[0]++;
+            }
+        }
+
+        private MalformedLineException malformed(String reason) {
+            return new MalformedLineException("Malformed manifest line " + lineNumber + ": "
+                    + reason);
+        }
+    }
+
+    private static final class MalformedLineException extends IOException {
+        private MalformedLineException(String message) {
+            super(message);
+        }
+    }
+
+    private final int threads;
+    private final File workingDir;
+
+    public Batch(int threads) {
+        this(threads, null);
+    }
+
+    /**
+     * @param workingDir Directory relative file arguments of jobs are resolved against, null
+     *                   for the working directory of the process
+     */
+    public Batch(int threads, File workingDir) {
+        this.threads = Math.max(1, threads);
+        this.workingDir = workingDir;
+    }
+
+    /**
+     * Runs the jobs of the manifest and writes their results as JSON lines.
+     *
+     * @return Number of jobs with a non-zero exit code
+     */
+    public int run(File manifest, OutputStream results) throws IOException {
+        int failed = 0;
+        JsonWriter writer = new JsonWriter(results);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (ManifestReader reader = new ManifestReader(manifest)) {
+            Deque<Future<Result>> inFlight = new ArrayDeque<>();
+            Job next = reader.next();
+            while (next != null || !inFlight.isEmpty()) {
+                // Keep a bounded window of jobs ahead of the one being reported.
+                while (next != null && inFlight.size() < threads * 2) {
+                    Job job = next;
+                    inFlight.add(pool.submit(() -> runJob(job, workingDir)));
+                    next = reader.next();
+                }
+                Result result = Utils.INSTANCE.await(inFlight.poll());
+                if (result.exitCode != 0) failed++;
+                writer.writeJobResult(result).writeLineSeparator();
+            }
+        } finally {
+            pool.shutdownNow();
+            writer.flush();
+        }
+        return failed;
+    }
+
+    public static Result runJob(Job job) throws UnsupportedEncodingException {
+        return runJob(job, null);
+    }
+
+    public static Result runJob(Job job, File workingDir) throws UnsupportedEncodingException {
+        if (job.error != null) {
+            return new Result(job.id, null, 1, "", job.error + System.lineSeparator());
+        }
+        String command = job.args[0].toLowerCase();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream error = new ByteArrayOutputStream();
+        int exitCode;
+        try (PrintStream out = new PrintStream(output, false, "UTF-8");
+             PrintStream err = new PrintStream(error, false, "UTF-8")) {
+            if (command.equals("batch") || command.equals("daemon")) {
+                err.println("Command " + command + " cannot run in a batch.");
+                exitCode = 1;
+            } else {
+                exitCode = runCommand(job.args, workingDir, out, err);
+            }
+        }
+        return new Result(job.id, job.args[0], exitCode, output.toString("UTF-8"),
+                error.toString("UTF-8"));
+    }
+
+    /**
+     * Runs a command like {@link Main#run}, but with exit code 1 when it fails to read its
+     * input, where the command line exits with 0.
+     */
+    private static int runCommand(String[] args, File workingDir, PrintStream out,
+                                  PrintStream err) {
+        try {
+            return Main.runCommand(args, workingDir, out, err);
+        } catch (IOException | StructureException | RuntimeException e) {
+            Main.printError(e, err);
+            return 1;
+        }
+    }
+}
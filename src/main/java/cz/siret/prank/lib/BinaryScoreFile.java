@@ -0,0 +1,137 @@
+package cz.siret.prank.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * Compact binary form of the conservation scores of one chain, read through a memory map.
+ *
+ * Layout (little endian): magic "PHOM", format version, residue count, then the residue
+ * codes padded to a multiple of 4 bytes, the int32 residue indices and the float64 scores.
+ * Scores are stored at full precision, so they read back exactly as parsed from the text file.
+ */
+public final class BinaryScoreFile {
+    public static final String SUFFIX = ".hom.bin";
+    public static final int VERSION = 2;
+
+    private static final int MAGIC = 0x4d4f4850; // "PHOM" read as little endian int
+    private static final int HEADER_SIZE = 12;
+
+    private BinaryScoreFile() {
+    }
+
+    public static boolean isBinaryFile(File file) {
+        return file.getName().endsWith(SUFFIX);
+    }
+
+    public static ChainScores read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IOException("Not a binary score file: " + file.getAbsolutePath());
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.getInt() != MAGIC) {
+                throw new IOException("Not a binary score file: " + file.getAbsolutePath());
+            }
+            int version = map.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary score file version " + version
+                        + ": " + file.getAbsolutePath());
+            }
+            int count = map.getInt();
+            if (count < 0 || fileSize != HEADER_SIZE + dataSize(count)) {
+                throw new IOException("Truncated binary score file: " + file.getAbsolutePath());
+            }
+            byte[] codes = new byte[count];
+            map.get(codes);
+            map.position((int) (HEADER_SIZE + padded(count)));
+            int[] indices = new int[count];
+            map.asIntBuffer().get(indices);
+            map.position(map.position() + count * 4);
+            double[] scores = new double[count];
+            map.asDoubleBuffer().get(scores);
+            return new ChainScores(codes, scores, indices);
+        }
+    }
+
+    /**
+     * Writes the scores to a temporary file next to the destination and moves it in place,
+     * so readers never see a partial file.
+     */
+    public static void write(ChainScores scores, File destination) throws IOException {
+        int count = scores.size();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(HEADER_SIZE + dataSize(count)))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(count);
+        buffer.put(scores.getCodes());
+        buffer.position((int) (HEADER_SIZE + padded(count)));
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(scores.getIndex(i));
+        }
+        for (int i = 0; i < count; i++) {
+            buffer.putDouble(scores.getScore(i));
+        }
+        buffer.flip();
+
+        Path target = destination.toPath().toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), destination.getName(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Converts a text score file (plain or gzipped) to the binary form.
+     */
+    public static void convert(File textFile, ConservationScore.ScoreFormat format,
+                               File destination) throws IOException {
+        ChainScores scores;
+        try (InputStream in = Utils.INSTANCE.readFile(textFile)) {
+            scores = ScoreFileParser.parse(in, format);
+        }
+        write(scores, destination);
+    }
+
+    /**
+     * @return Name of the binary file for a text score file, e.g. 1abcA.pdb.hom.gz -&gt;
+     * 1abcA.pdb.hom.bin
+     */
+    public static String binaryName(String textFileName) {
+        String base = textFileName;
+        if (base.endsWith(".gz")) base = base.substring(0, base.length() - 3);
+        if (base.endsWith(".hom")) base = base.substring(0, base.length() - 4);
+        return base + SUFFIX;
+    }
+
+    /**
+     * Computed in long, so that a corrupt count cannot wrap around.
+     */
+    private static long dataSize(int count) {
+        return padded(count) + count * 12L;
+    }
+
+    private static long padded(int count) {
+        return (count + 3L) & ~3L;
+    }
+}
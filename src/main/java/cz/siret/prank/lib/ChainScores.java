@@ -0,0 +1,48 @@
+package cz.siret.prank.lib;
+
+import java.io.Serializable;
+
+import cz.siret.prank.lib.utils.ResidueAlphabet;
+
+/**
+ * Conservation scores of one chain as parsed from a score file, stored column-wise: residue
+ * codes (see {@link ResidueAlphabet}), scores and residue indices from the file.
+ */
+public class ChainScores implements Serializable {
+    private final byte[] codes;
+    private final double[] scores;
+    private final int[] indices;
+
+    public ChainScores(byte[] codes, double[] scores, int[] indices) {
+        if (codes.length != scores.length || codes.length != indices.length) {
+            throw new IllegalArgumentException("Score columns differ in length.");
+        }
+        this.codes = codes;
+        this.scores = scores;
+        this.indices = indices;
+    }
+
+    public int size() {
+        return codes.length;
+    }
+
+    public byte[] getCodes() {
+        return codes;
+    }
+
+    public double getScore(int i) {
+        return scores[i];
+    }
+
+    public int getIndex(int i) {
+        return indices[i];
+    }
+
+    public double[] getScores() {
+        return scores;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+}
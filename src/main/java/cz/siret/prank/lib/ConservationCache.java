@@ -0,0 +1,255 @@
+package cz.siret.prank.lib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Persistent content-addressed cache of conservation results (MSAs and .hom files).
+ *
+ * Entries are files named by the SHA-256 of their key and stored in a two-level directory
+ * fan-out. Every entry is written to a temporary file and atomically moved in place, so
+ * several JVMs can share one cache directory. Reads refresh the modification time, which
+ * serves as the LRU order once the total size exceeds the cap; eviction runs under a file
+ * lock and is skipped while another process evicts.
+ */
+public class ConservationCache {
+    public static final String MSA = "fasta";
+    public static final String SCORES = "hom";
+    /**
+     * Empty entry of a chain known to have no conservation results.
+     */
+    public static final String NO_MATCH = "none";
+
+    private static final String LOCK_FILE = ".lock";
+    private static final String TEMP_SUFFIX = ".tmp";
+    /**
+     * Temporary files older than this are left over by crashed writers.
+     */
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    private static final class CachedFile {
+        private final Path path;
+        private final long lastModified;
+        private final long size;
+
+        private CachedFile(Path path, long lastModified, long size) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Path dir;
+    private final long maxBytes;
+    /**
+     * Bytes written since the last eviction, triggers a size check.
+     */
+    private final AtomicLong written = new AtomicLong();
+
+    public ConservationCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * @return Hex encoded SHA-256 of the parts, separated by zero bytes.
+     */
+    public static String key(String... parts) {
+        return hash(parts, null);
+    }
+
+    /**
+     * @return Hex encoded SHA-256 of the parts and the content.
+     */
+    public static String key(byte[] content, String... parts) {
+        return hash(parts, content);
+    }
+
+    /**
+     * Like {@link #key(byte[], String...)}, but reads the content from a file in chunks.
+     */
+    public static String key(Path content, String... parts) throws IOException {
+        MessageDigest digest = digest(parts);
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(content)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return hex(digest);
+    }
+
+    /**
+     * @return Cached data, null if not cached.
+     */
+    public byte[] get(String key, String kind) {
+        Path file = entry(key, kind);
+        try {
+            byte[] data = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return data;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            // Evicted meanwhile or unreadable, either way a miss.
+            logger.debug("Conservation cache read failed: {}", e.toString());
+            return null;
+        }
+    }
+
+    public void put(String key, String kind, byte[] data) {
+        put(key, kind, data.length, temp -> Files.write(temp, data));
+    }
+
+    /**
+     * Copies the file into the cache without reading it into memory.
+     */
+    public void put(String key, String kind, Path source) {
+        long size;
+        try {
+            size = Files.size(source);
+        } catch (IOException e) {
+            logger.warn("Conservation cache write failed: {}", e.toString());
+            return;
+        }
+        put(key, kind, size, temp -> Files.copy(source, temp,
+                StandardCopyOption.REPLACE_EXISTING));
+    }
+
+    private interface EntryWriter {
+        void write(Path temp) throws IOException;
+    }
+
+    private void put(String key, String kind, long size, EntryWriter writer) {
+        Path file = entry(key, kind);
+        try {
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(),
+                    TEMP_SUFFIX);
+            try {
+                writer.write(temp);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            logger.warn("Conservation cache write failed: {}", e.toString());
+            return;
+        }
+        if (written.addAndGet(size) > maxBytes / 16) {
+            written.set(0);
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits its size cap. Temporary
+     * files of writers are left alone unless stale.
+     */
+    public void evict() {
+        try (FileChannel lockChannel = FileChannel.open(dir.resolve(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = lockChannel.tryLock()) {
+            if (lock == null) return; // Another process is evicting.
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> walk = Files.walk(dir)) {
+                walk.filter(Files::isRegularFile)
+                        .filter(f -> !f.getFileName().toString().equals(LOCK_FILE))
+                        .forEach(files::add);
+            }
+            long total = 0;
+            long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+            List<CachedFile> entries = new ArrayList<>(files.size());
+            for (Path f : files) {
+                try {
+                    long size = Files.size(f);
+                    long lastModified = Files.getLastModifiedTime(f).toMillis();
+                    if (f.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                        if (lastModified < staleBefore) {
+                            Files.deleteIfExists(f);
+                        } else {
+                            total += size; // Being written.
+                        }
+                        continue;
+                    }
+                    total += size;
+                    entries.add(new CachedFile(f, lastModified, size));
+                } catch (NoSuchFileException e) {
+                    // Moved away meanwhile.
+                }
+            }
+            if (total <= maxBytes) return;
+            entries.sort(Comparator.comparingLong(e -> e.lastModified));
+            for (CachedFile e : entries) {
+                if (total <= maxBytes) break;
+                Files.deleteIfExists(e.path);
+                total -= e.size;
+            }
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("Conservation cache eviction failed: {}", e.toString());
+        }
+    }
+
+    private Path entry(String key, String kind) {
+        return dir.resolve(key.substring(0, 2)).resolve(key + "." + kind);
+    }
+
+    private static String hash(String[] parts, byte[] content) {
+        MessageDigest digest = digest(parts);
+        if (content != null) {
+            digest.update(content);
+        }
+        return hex(digest);
+    }
+
+    /**
+     * @return SHA-256 digest updated with the parts, separated by zero bytes.
+     */
+    private static MessageDigest digest(String[] parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (String part : parts) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return digest;
+    }
+
+    private static String hex(MessageDigest digest) {
+        StringBuilder result = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            result.append(Character.forDigit((b >>> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return result.toString();
+    }
+}
@@ -1,11 +1,6 @@
 package cz.siret.prank.lib;
 
-import com.univocity.parsers.tsv.TsvParser;
-import com.univocity.parsers.tsv.TsvParserSettings;
-
-import org.biojava.nbio.structure.Chain;
 import org.biojava.nbio.structure.Group;
-import org.biojava.nbio.structure.GroupType;
 import org.biojava.nbio.structure.ResidueNumber;
 import org.biojava.nbio.structure.Structure;
 import org.biojava.nbio.structure.StructureException;
@@ -13,78 +8,190 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import cz.siret.prank.lib.utils.BioUtils;
+import cz.siret.prank.lib.utils.LongDoubleHashMap;
+import cz.siret.prank.lib.utils.LongestCommonSubsequence;
+import cz.siret.prank.lib.utils.ResidueAlphabet;
 import cz.siret.prank.lib.utils.Tuple;
 import cz.siret.prank.lib.utils.Tuple2;
 import cz.siret.prank.lib.utils.Tuple3;
 import cz.siret.prank.lib.utils.Utils;
 
 public class ConservationScore implements Serializable {
-    private Map<ResidueNumberWrapper, Double> scores;
+    /**
+     * Scores keyed by {@link ResidueNumberWrapper#toKey(ResidueNumber)}.
+     */
+    private LongDoubleHashMap scores;
     private final transient Logger logger = LoggerFactory.getLogger(getClass());
 
-    private ConservationScore(Map<ResidueNumberWrapper, Double> scores) {
+    /**
+     * Parsed score files shared by pickScores, pickScoresForFile and fromFiles.
+     */
+    private static volatile ScoreFileCache scoreFileCache =
+            new ScoreFileCache(ScoreFileCache.DEFAULT_MAX_BYTES);
+
+    private ConservationScore(LongDoubleHashMap scores) {
         this.scores = scores;
     }
 
     public static List<Tuple2<File, String>> pickScoresForPDBs(File[] files)
             throws IOException, StructureException {
         List<Tuple2<File, String>> scoreFiles = new ArrayList<>(files.length);
-        for (File pdbFile : files) {
-            Tuple2<String, String> baseAndExt = BioUtils.INSTANCE.removePdbExtension(pdbFile.getName());
-            Path parentDir = Paths.get(pdbFile.getParent());
-            pickScoresForFile(pdbFile).forEach(t-> {
-                String chainId = t.getItem3();
-                File scoreFile = parentDir.
-                        resolve(baseAndExt.getItem1() + chainId.toUpperCase()
-                                + baseAndExt.getItem2() + ".hom.gz")
-                        .toFile();
-                scoreFiles.add(Tuple.create(t.getItem1(), scoreFile.getName()));
-            });
-        }
+        pickScoresForPDBs(files, Runtime.getRuntime().availableProcessors(), scoreFiles::add);
         return scoreFiles;
     }
 
+    /**
+     * Picks score files for many PDB files in parallel. Every directory is listed only once.
+     *
+     * @param files    PDB files
+     * @param threads  Number of PDB files processed concurrently
+     * @param consumer Receives (picked score file, expected score file name) pairs, in the
+     *                 order of the input files
+     */
+    public static void pickScoresForPDBs(File[] files, int threads,
+                                         Consumer<Tuple2<File, String>> consumer)
+            throws IOException {
+        threads = Math.max(1, threads);
+        Map<File, ScoreFileIndex> indices = new ConcurrentHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            Deque<Future<List<Tuple2<File, String>>>> inFlight = new ArrayDeque<>();
+            int next = 0;
+            while (next < files.length || !inFlight.isEmpty()) {
+                // Keep a bounded window of PDB files ahead of the one being reported.
+                while (next < files.length && inFlight.size() < threads * 2) {
+                    File pdbFile = files[next++];
+                    inFlight.add(pool.submit(() -> pickScoresForPDB(pdbFile, indices)));
+                }
+                for (Tuple2<File, String> t : Utils.INSTANCE.await(inFlight.poll())) {
+                    consumer.accept(t);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static List<Tuple2<File, String>> pickScoresForPDB(
+            File pdbFile, Map<File, ScoreFileIndex> indices) throws IOException {
+        Tuple2<String, String> baseAndExt = BioUtils.INSTANCE.removePdbExtension(pdbFile.getName());
+        ScoreFileIndex index = indices.computeIfAbsent(
+                pdbFile.getAbsoluteFile().getParentFile(), ScoreFileIndex::of);
+        List<Tuple2<File, String>> result = new ArrayList<>();
+        pickScoresForFile(pdbFile, index).forEach(t -> {
+            String chainId = t.getItem3();
+            String suffix = BinaryScoreFile.isBinaryFile(t.getItem1()) ? BinaryScoreFile.SUFFIX
+                    : ScoreFileIndex.SCORE_FILE_SUFFIX;
+            String scoreFileName = baseAndExt.getItem1() + chainId.toUpperCase()
+                    + baseAndExt.getItem2() + suffix;
+            result.add(Tuple.create(t.getItem1(), scoreFileName));
+        });
+        return result;
+    }
+
     public static Map<String, String> pickScores(Structure protein,
                                                  Map<String, File> conservationFiles)
             throws IOException {
+        return pickScores(ProteinIndex.of(protein), conservationFiles);
+    }
+
+    public static Map<String, String> pickScores(ProteinIndex protein,
+                                                 Map<String, File> conservationFiles)
+            throws IOException {
         Map<String, String> result = new HashMap<>();
-        for (Chain chain : protein.getChains()) {
-            // Skip non-protein chains.
-            if (chain.getAtomGroups(GroupType.AMINOACID).size() <= 0) continue;
+        Map<String, String> fallbacks = new HashMap<>();
+        for (ProteinIndex.ProteinChain chain : protein.getChains()) {
             // Try end find score for this chain.
-            String chainId = chain.getChainID().trim().isEmpty() ? "A" : chain.getChainID();
+            String chainId = chain.getId();
             File scoreFile = conservationFiles.get(chainId);
             if (scoreFile != null && scoreFile.exists()) {
                 result.put(chainId, chainId);
                 continue;
             }
+            // Identical chains end up with the same fallback.
+            String firstId = chain.getFirstIdenticalId();
+            if (fallbacks.containsKey(firstId)) {
+                if (fallbacks.get(firstId) != null) result.put(chainId, fallbacks.get(firstId));
+                continue;
+            }
             // Fallback case. Try all chains and pick the one with longest LCS.
+            byte[] chainCodes = chain.getCodes();
             int max = -1;
             String newScoreChain = null;
             for (Map.Entry<String, File> possibleScoreFile : conservationFiles.entrySet()) {
-                List<ConservationScore.AA> scores = loadScoreFile(possibleScoreFile.getValue(),
+                ChainScores scores = loadScoreFile(possibleScoreFile.getValue(),
                         ConservationScore.ScoreFormat.JSDFormat);
-                int[][] lcs = calcLongestCommonSubSequence(
-                        chain.getAtomGroups(GroupType.AMINOACID), scores);
-                int length = lcs[lcs.length - 1][lcs[lcs.length - 1].length - 1];
+                int length = LongestCommonSubsequence.INSTANCE.length(chainCodes,
+                        scores.getCodes());
                 if (max < length) {
                     max = length;
                     newScoreChain = possibleScoreFile.getKey();
                 }
             }
+            fallbacks.put(firstId, newScoreChain);
+            if (newScoreChain != null) {
+                result.put(chainId, newScoreChain);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #pickScores(Structure, Map)} for scores that are already parsed, e.g.
+     * captured in memory from the conservation script.
+     */
+    public static Map<String, String> pickParsedScores(Structure protein,
+                                                       Map<String, ChainScores> chainScores) {
+        return pickParsedScores(ProteinIndex.of(protein), chainScores);
+    }
+
+    public static Map<String, String> pickParsedScores(ProteinIndex protein,
+                                                       Map<String, ChainScores> chainScores) {
+        Map<String, String> result = new HashMap<>();
+        Map<String, String> fallbacks = new HashMap<>();
+        for (ProteinIndex.ProteinChain chain : protein.getChains()) {
+            String chainId = chain.getId();
+            if (chainScores.containsKey(chainId)) {
+                result.put(chainId, chainId);
+                continue;
+            }
+            // Identical chains end up with the same fallback.
+            String firstId = chain.getFirstIdenticalId();
+            if (fallbacks.containsKey(firstId)) {
+                if (fallbacks.get(firstId) != null) result.put(chainId, fallbacks.get(firstId));
+                continue;
+            }
+            // Fallback case. Try all chains and pick the one with longest LCS.
+            byte[] chainCodes = chain.getCodes();
+            int max = -1;
+            String newScoreChain = null;
+            for (Map.Entry<String, ChainScores> possibleScores : chainScores.entrySet()) {
+                int length = LongestCommonSubsequence.INSTANCE.length(chainCodes,
+                        possibleScores.getValue().getCodes());
+                if (max < length) {
+                    max = length;
+                    newScoreChain = possibleScores.getKey();
+                }
+            }
+            fallbacks.put(firstId, newScoreChain);
             if (newScoreChain != null) {
                 result.put(chainId, newScoreChain);
             }
@@ -94,41 +201,74 @@ public class ConservationScore implements Serializable {
 
     public static List<Tuple3<File, String, String>> pickScoresForFile(File pdbFile) throws
             IOException {
+        return pickScoresForFile(pdbFile,
+                ScoreFileIndex.lazy(pdbFile.getAbsoluteFile().getParentFile()));
+    }
+
+    /**
+     * @param index Score files of the directory containing pdbFile
+     */
+    public static List<Tuple3<File, String, String>> pickScoresForFile(File pdbFile,
+                                                                       ScoreFileIndex index)
+            throws IOException {
+        return pickScoresForFile(pdbFile, BioUtils.INSTANCE.loadPdbFile(pdbFile), index);
+    }
+
+    /**
+     * @param s     Structure already loaded from pdbFile
+     * @param index Score files of the directory containing pdbFile
+     */
+    public static List<Tuple3<File, String, String>> pickScoresForFile(File pdbFile,
+                                                                       Structure s,
+                                                                       ScoreFileIndex index)
+            throws IOException {
+        return pickScoresForFile(pdbFile, ProteinIndex.of(s), index);
+    }
+
+    /**
+     * @param protein Protein chains of the structure loaded from pdbFile
+     * @param index   Score files of the directory containing pdbFile
+     */
+    public static List<Tuple3<File, String, String>> pickScoresForFile(File pdbFile,
+                                                                       ProteinIndex protein,
+                                                                       ScoreFileIndex index)
+            throws IOException {
         List<Tuple3<File, String, String>> result = new ArrayList<>();
-        Structure s = BioUtils.INSTANCE.loadPdbFile(pdbFile);
-        for (Chain chain : s.getChains()) {
-            // Skip non-protein chains.
-            if (chain.getAtomGroups(GroupType.AMINOACID).size() <= 0) continue;
+        Tuple2<String, String> baseAndExt = BioUtils.INSTANCE.removePdbExtension(pdbFile.getName());
+        Map<String, File> fallbacks = new HashMap<>();
+        for (ProteinIndex.ProteinChain chain : protein.getChains()) {
             // Try end find score for this chain.
-            Tuple2<String, String> baseAndExt = BioUtils.INSTANCE.removePdbExtension(pdbFile.getName());
-            Path parentDir = Paths.get(pdbFile.getParent());
-            String chainId = chain.getChainID().trim().isEmpty() ? "A" : chain.getChainID();
-            File scoreFile = parentDir.
-                    resolve(baseAndExt.getItem1() + chainId.toUpperCase()
-                            + baseAndExt.getItem2() + ".hom.gz")
-                    .toFile();
-            if (scoreFile.exists()) {
+            String chainId = chain.getId();
+            File scoreFile = index.scoreFile(baseAndExt.getItem1() + chainId.toUpperCase()
+                    + baseAndExt.getItem2());
+            if (scoreFile != null) {
                 result.add(Tuple.create(scoreFile, baseAndExt.getItem1(), chainId));
                 continue;
             }
+            // Identical chains end up with the same fallback.
+            String firstId = chain.getFirstIdenticalId();
+            if (fallbacks.containsKey(firstId)) {
+                scoreFile = fallbacks.get(firstId);
+                if (scoreFile != null) {
+                    result.add(Tuple.create(scoreFile, baseAndExt.getItem1(), chainId));
+                }
+                continue;
+            }
             // Fallback case. Try all chains and pick the one with longest LCS.
-            File[] possibleScoreFiles = parentDir.toFile().listFiles(
-                    (File dir, String name) -> {
-                        return name.startsWith(baseAndExt.getItem1()) && name.endsWith(".hom.gz");
-                    });
+            List<File> possibleScoreFiles = index.candidates(baseAndExt.getItem1());
+            byte[] chainCodes = chain.getCodes();
             int max = -1;
             File newScoreFile = null;
-            assert possibleScoreFiles != null;
             for (File possibleScoreFile : possibleScoreFiles) {
-                List<AA> scores = loadScoreFile(possibleScoreFile, ScoreFormat.JSDFormat);
-                int[][] lcs = calcLongestCommonSubSequence(
-                        chain.getAtomGroups(GroupType.AMINOACID), scores);
-                int length = lcs[lcs.length - 1][lcs[lcs.length - 1].length - 1];
+                ChainScores scores = loadScoreFile(possibleScoreFile, ScoreFormat.JSDFormat);
+                int length = LongestCommonSubsequence.INSTANCE.length(chainCodes,
+                        scores.getCodes());
                 if (max < length) {
                     max = length;
                     newScoreFile = possibleScoreFile;
                 }
             }
+            fallbacks.put(firstId, newScoreFile);
             if (newScoreFile != null) {
                 result.add(Tuple.create(newScoreFile, baseAndExt.getItem1(), chainId));
             }
@@ -136,72 +276,74 @@ public class ConservationScore implements Serializable {
         return result;
     }
 
-    private static class AA {
-        public String letter;
-        public double score;
-        public int index;
-
-        public AA(String letter, double score, int index) {
-            this.letter = letter;
-            this.score = score;
-            this.index = index;
-        }
-    }
-
     public double getScoreForResidue(ResidueNumber residueNum) {
-        return getScoreForResidue(new ResidueNumberWrapper(residueNum));
+        return scores.get(ResidueNumberWrapper.toKey(residueNum), 0);
     }
 
     public double getScoreForResidue(ResidueNumberWrapper residueNum) {
-        Double res = scores.get(residueNum);
-        if (res == null) {
+        if (residueNum.getResNum() == null) {
             return 0;
-        } else {
-            return res.doubleValue();
         }
+        return getScoreForResidue(residueNum.getResNum());
     }
 
+    public double getScoreForResidue(long residueKey) {
+        return scores.get(residueKey, 0);
+    }
+
+    /**
+     * Copy of the scores as a map. Meant for compatibility only, the map is rebuilt on every
+     * call and its keys ignore chains (see {@link ResidueNumberWrapper#equals(Object)}).
+     */
     public Map<ResidueNumberWrapper, Double> getScoreMap() {
-        return scores;
+        Map<ResidueNumberWrapper, Double> result = new HashMap<>(scores.size() * 2);
+        scores.forEach((key, value) -> result.put(
+                new ResidueNumberWrapper(ResidueNumberWrapper.fromKey(key)), value));
+        return result;
     }
 
     public int size() {
         return this.scores.size();
     }
 
+    /**
+     * Visits residue keys (see {@link ResidueNumberWrapper#toKey()}) with their scores.
+     */
+    void forEachScore(LongDoubleHashMap.EntryConsumer consumer) {
+        scores.forEach(consumer);
+    }
+
     public enum ScoreFormat {
         ConCavityFormat,
-        JSDFormat
-    }
-
-    private static List<AA> loadScoreFile(File scoreFile, ScoreFormat format) throws IOException {
-        TsvParserSettings settings = new TsvParserSettings();
-        settings.setLineSeparatorDetectionEnabled(true);
-        TsvParser parser = new TsvParser(settings);
-        List<String[]> lines = parser.parseAll(Utils.INSTANCE.readFile(scoreFile));
-        List<AA> result = new ArrayList<>(lines.size());
-        for (String[] line : lines) {
-            int index = -1;
-            double score = 0;
-            String letter = "-";
-            switch (format) {
-                case ConCavityFormat:
-                    index = Integer.parseInt(line[0]);
-                    letter = line[1];
-                    score = Double.parseDouble(line[2]);
-                    break;
-                case JSDFormat:
-                    index = Integer.parseInt(line[0]);
-                    score = Double.parseDouble(line[1]);
-                    letter = line[2].substring(0, 1);
-                    break;
-            }
-            score = score < 0 ? 0 : score;
-            if (letter != "-") {
-                result.add(new AA(letter, score, index));
-            }
+        JSDFormat,
+        /**
+         * {@link BinaryScoreFile}, files named *.hom.bin are read as binary regardless of the
+         * requested format.
+         */
+        BinaryFormat
+    }
+
+    public static ScoreFileCache getScoreFileCache() {
+        return scoreFileCache;
+    }
+
+    public static void setScoreFileCache(ScoreFileCache cache) {
+        scoreFileCache = cache;
+    }
+
+    private static ChainScores loadScoreFile(File scoreFile, ScoreFormat format)
+            throws IOException {
+        return scoreFileCache.get(scoreFile, format, ConservationScore::parseScoreFile);
+    }
+
+    private static ChainScores parseScoreFile(File scoreFile, ScoreFormat format)
+            throws IOException {
+        if (format == ScoreFormat.BinaryFormat || BinaryScoreFile.isBinaryFile(scoreFile)) {
+            return BinaryScoreFile.read(scoreFile);
+        }
+        try (InputStream in = Utils.INSTANCE.readFile(scoreFile)) {
+            return ScoreFileParser.parse(in, format);
         }
-        return result;
     }
 
     public static ConservationScore fromFiles(Structure structure,
@@ -212,58 +354,58 @@ public class ConservationScore implements Serializable {
 
     /**
      * @param chain       Chain start PDB Structure
+     * @param chainCodes  Residue codes of the chain, see {@link ResidueAlphabet}
      * @param chainScores Parse conservation scores.
-     * @param outResult   Add matched scores end map (residual number -> conservation score)
+     * @param outResult   Add matched scores end map (residue key -> conservation score)
      */
-    public static void matchSequences(List<Group> chain, List<AA> chainScores,
-                                      Map<ResidueNumberWrapper, Double> outResult) {
-        // Check if the strings match
-        String pdbChain = chain.stream().map(ch -> ch.getChemComp().getOne_letter_code()
-                .toUpperCase()).collect(Collectors.joining());
-        String scoreChain = chainScores.stream().map(ch -> ch.letter.toUpperCase())
-                .collect(Collectors.joining());
-        if (pdbChain.equals(scoreChain)) {
-            for (int i = 0; i < chainScores.size(); i++) {
-                outResult.put(new ResidueNumberWrapper(chain.get(i).getResidueNumber()),
-                        chainScores.get(i).score);
+    public static void matchSequences(List<Group> chain, byte[] chainCodes,
+                                      ChainScores chainScores,
+                                      LongDoubleHashMap outResult) {
+        int[] alignment = alignSequences(chainCodes, chainScores);
+        for (int i = 0; i < alignment.length; i++) {
+            if (alignment[i] >= 0) {
+                outResult.put(ResidueNumberWrapper.toKey(chain.get(i).getResidueNumber()),
+                        chainScores.getScore(alignment[i]));
             }
-            return;
         }
+    }
 
-        System.out.println("Matching chains using LCS");
-        int[][] lcs = calcLongestCommonSubSequence(chain, chainScores);
-
-        // Backtrack the actual sequence.
-        int i = chain.size(), j = chainScores.size();
-        while (i > 0 && j > 0) {
-            // Letters are equal.
-            if (chain.get(i - 1).getChemComp().getOne_letter_code().toUpperCase().equals(
-                    chainScores.get(j - 1).letter.toUpperCase())) {
-                outResult.put(new ResidueNumberWrapper(chain.get(i - 1).getResidueNumber()),
-                        chainScores.get(j - 1).score);
-                i--;
-                j--;
-            } else {
-                if (lcs[i][j - 1] > lcs[i - 1][j]) {
-                    j--;
-                } else {
-                    i--;
-                }
+    /**
+     * @return For each residue of the chain the index of its score in chainScores, or -1
+     */
+    private static int[] alignSequences(byte[] chainCodes, ChainScores chainScores) {
+        // Check if the strings match
+        if (Arrays.equals(chainCodes, chainScores.getCodes())) {
+            int[] alignment = new int[chainCodes.length];
+            for (int i = 0; i < alignment.length; i++) alignment[i] = i;
+            return alignment;
+        }
+        LoggerFactory.getLogger(ConservationScore.class).debug("Matching chains using LCS");
+        return LongestCommonSubsequence.INSTANCE.align(chainCodes, chainScores.getCodes());
+    }
+
+    private static void applyAlignment(long[] residueKeys, int[] alignment,
+                                       ChainScores chainScores, LongDoubleHashMap outResult) {
+        for (int i = 0; i < alignment.length; i++) {
+            if (alignment[i] >= 0) {
+                outResult.put(residueKeys[i], chainScores.getScore(alignment[i]));
             }
         }
     }
 
-    public static int[][] calcLongestCommonSubSequence(List<Group> chain, List<AA> chainScores) {
+    /**
+     * Full DP table of the longest common subsequence. Needs O(chain * scores) memory, use
+     * {@link LongestCommonSubsequence} instead.
+     */
+    @Deprecated
+    public static int[][] calcLongestCommonSubSequence(byte[] chainCodes, byte[] scoreCodes) {
         // Implementation of Longest Common SubSequence
         // https://en.wikipedia.org/wiki/Longest_common_subsequence_problem
-        int[][] lcs = new int[chain.size() + 1][chainScores.size() + 1];
-        for (int i = 0; i <= chain.size(); i++) lcs[i][0] = 0;
-        for (int j = 0; j <= chainScores.size(); j++) lcs[0][j] = 0;
-        for (int i = 1; i <= chain.size(); i++) {
-            for (int j = 1; j <= chainScores.size(); j++) {
+        int[][] lcs = new int[chainCodes.length + 1][scoreCodes.length + 1];
+        for (int i = 1; i <= chainCodes.length; i++) {
+            for (int j = 1; j <= scoreCodes.length; j++) {
                 // Letters are equal.
-                if (chain.get(i - 1).getChemComp().getOne_letter_code().toUpperCase().equals(
-                        chainScores.get(j - 1).letter.toUpperCase())) {
+                if (chainCodes[i - 1] == scoreCodes[j - 1]) {
                     lcs[i][j] = lcs[i - 1][j - 1] + 1;
                 } else {
                     lcs[i][j] = Math.max(lcs[i - 1][j], lcs[i][j - 1]);
@@ -284,21 +426,32 @@ public class ConservationScore implements Serializable {
     public static ConservationScore fromFiles(Structure structure,
                                               Function<String, File> scoreFiles,
                                               ScoreFormat format) throws IOException {
-        Map<ResidueNumberWrapper, Double> scores = new HashMap<>();
-        for (Chain chain : structure.getChains()) {
-            if (chain.getAtomGroups(GroupType.AMINOACID).size() <= 0) {
-                continue;
-            }
-            String chainId = chain.getChainID();
-            chainId = chainId.trim().isEmpty() ? "A" : chainId;
-            List<AA> chainScores = null;
+        return fromFiles(ProteinIndex.of(structure), scoreFiles, format);
+    }
+
+    public static ConservationScore fromFiles(ProteinIndex protein,
+                                              Function<String, File> scoreFiles,
+                                              ScoreFormat format) throws IOException {
+        LongDoubleHashMap scores = new LongDoubleHashMap();
+        // Alignments by (first identical chain, score file), shared by identical chains.
+        Map<Tuple2<String, File>, int[]> alignments = new HashMap<>();
+        for (ProteinIndex.ProteinChain chain : protein.getChains()) {
+            String chainId = chain.getId();
+            ChainScores chainScores = null;
             File scoreFile = scoreFiles.apply(chainId);
             try {
                 if (scoreFile != null && scoreFile.exists()) {
                     chainScores = ConservationScore.loadScoreFile(scoreFile, format);
                 }
                 if (chainScores != null) {
-                    matchSequences(chain.getAtomGroups(GroupType.AMINOACID), chainScores, scores);
+                    Tuple2<String, File> key = Tuple.create(chain.getFirstIdenticalId(),
+                            scoreFile);
+                    int[] alignment = alignments.get(key);
+                    if (alignment == null) {
+                        alignment = alignSequences(chain.getCodes(), chainScores);
+                        alignments.put(key, alignment);
+                    }
+                    applyAlignment(chain.getResidueKeys(), alignment, chainScores, scores);
                 }
             } catch (NumberFormatException e) {
                 return null;
@@ -311,7 +464,24 @@ public class ConservationScore implements Serializable {
     }
 
     public static  ConservationScore forFile(File pdbFile, ScoreFormat format) throws IOException {
-        List<Tuple3<File, String, String>> scoreFiles = ConservationScore.pickScoresForFile(pdbFile);
+        return forFile(pdbFile, BioUtils.INSTANCE.loadPdbFile(pdbFile), format);
+    }
+
+    /**
+     * @param structure Structure already loaded from pdbFile
+     */
+    public static ConservationScore forFile(File pdbFile, Structure structure,
+                                            ScoreFormat format) throws IOException {
+        return forFile(pdbFile, ProteinIndex.of(structure), format);
+    }
+
+    /**
+     * @param protein Protein chains of the structure loaded from pdbFile
+     */
+    public static ConservationScore forFile(File pdbFile, ProteinIndex protein,
+                                            ScoreFormat format) throws IOException {
+        List<Tuple3<File, String, String>> scoreFiles = ConservationScore.pickScoresForFile(
+                pdbFile, protein, ScoreFileIndex.lazy(pdbFile.getAbsoluteFile().getParentFile()));
         if (scoreFiles == null || scoreFiles.isEmpty()) {
             return null;
         }
@@ -323,6 +493,6 @@ public class ConservationScore implements Serializable {
             }
             return null;
         };
-        return fromFiles(BioUtils.INSTANCE.loadPdbFile(pdbFile), mappingFunction, format);
+        return fromFiles(protein, mappingFunction, format);
     }
 }
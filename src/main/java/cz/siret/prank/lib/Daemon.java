@@ -0,0 +1,214 @@
+package cz.siret.prank.lib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import cz.siret.prank.lib.utils.BioUtils;
+import cz.siret.prank.lib.utils.StructureCache;
+
+/**
+ * Runs {@link Main} commands for {@link DaemonClient}s in a long-running JVM, so that JVM
+ * start, class loading and JIT warm-up are paid once and parsed structures and score files
+ * stay cached between requests.
+ *
+ * Listens on the loopback interface only. Since any local user can connect there, clients
+ * have to send a random token the daemon writes to a file only its user can read, see
+ * {@link DaemonClient#tokenFile(int)}. Commands of different clients run concurrently, the
+ * "shutdown" command stops the daemon.
+ */
+public class Daemon implements Closeable {
+    private static final int MAX_ARGS = 1024;
+
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService pool;
+    private final Path tokenFile;
+    private final byte[] token;
+
+    /**
+     * @param port    Port to listen on, 0 for any free port
+     * @param threads Maximum number of commands running at once
+     */
+    public Daemon(int port, int threads) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.tokenFile = DaemonClient.tokenFile(getPort());
+        this.token = newToken();
+        try {
+            writeToken(tokenFile, token);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        this.pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        if (BioUtils.INSTANCE.getStructureCache() == null) {
+            BioUtils.INSTANCE.setStructureCache(new StructureCache());
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts clients until the daemon is closed.
+     */
+    public void serve() throws IOException {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                if (serverSocket.isClosed()) break;
+                throw e;
+            }
+            pool.execute(() -> handle(socket));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        pool.shutdown();
+        Files.deleteIfExists(tokenFile);
+    }
+
+    private static byte[] newToken() {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder(random.length * 2);
+        for (byte b : random) {
+            token.append(String.format("%02x", b & 0xFF));
+        }
+        return token.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates the token file readable and writable only by the owner.
+     */
+    private static void writeToken(Path file, byte[] token) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(file);
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } else {
+            File created = Files.createFile(file).toFile();
+            created.setReadable(false, false);
+            created.setWritable(false, false);
+            created.setReadable(true, true);
+            created.setWritable(true, true);
+        }
+        Files.write(file, token);
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream request = new DataInputStream(
+                    new BufferedInputStream(s.getInputStream()));
+            byte[] clientToken = request.readUTF().getBytes(StandardCharsets.UTF_8);
+            if (!MessageDigest.isEqual(token, clientToken)) {
+                logger.warn("Refused a client with a wrong token");
+                return;
+            }
+            File workingDir = new File(request.readUTF());
+            int count = request.readInt();
+            if (count < 0 || count > MAX_ARGS) {
+                throw new IOException("Invalid argument count " + count);
+            }
+            String[] args = new String[count];
+            for (int i = 0; i < count; i++) {
+                args[i] = request.readUTF();
+            }
+
+            DataOutputStream response = new DataOutputStream(
+                    new BufferedOutputStream(s.getOutputStream()));
+            PrintStream out = new PrintStream(new BufferedOutputStream(
+                    new FrameOutputStream(response, DaemonClient.FRAME_STDOUT)), false, "UTF-8");
+            PrintStream err = new PrintStream(new BufferedOutputStream(
+                    new FrameOutputStream(response, DaemonClient.FRAME_STDERR)), false, "UTF-8");
+            int exitCode = run(args, workingDir.isAbsolute() ? workingDir : null, out, err);
+            out.flush();
+            err.flush();
+            synchronized (response) {
+                response.writeByte(DaemonClient.FRAME_EXIT);
+                response.writeInt(exitCode);
+                response.flush();
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to serve a client: {}", e.toString());
+        }
+    }
+
+    private int run(String[] args, File workingDir, PrintStream out, PrintStream err)
+            throws IOException {
+        String command = args.length > 0 ? args[0].toLowerCase() : "";
+        switch (command) {
+            case "daemon":
+                err.println("Already running as a daemon.");
+                return 1;
+            case "shutdown":
+                close();
+                return 0;
+            default:
+                return Main.run(args, workingDir, out, err);
+        }
+    }
+
+    /**
+     * Wraps the bytes written to it into frames of one type.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream response;
+        private final int type;
+
+        private FrameOutputStream(DataOutputStream response, int type) {
+            this.response = response;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            synchronized (response) {
+                response.writeByte(type);
+                response.writeInt(len);
+                response.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (response) {
+                response.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package cz.siret.prank.lib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Command line front end of {@link Daemon}, taking the same arguments as {@link Main}.
+ *
+ * The command runs in the daemon and its output and exit code are passed through. Relative
+ * file arguments are resolved against the working directory of the client. Without a
+ * daemon the command runs in this process. The port is taken from the pranklib.daemon.port
+ * system property or the PRANKLIB_DAEMON_PORT environment variable.
+ *
+ * Protocol: the client sends the token the daemon wrote to {@link #tokenFile(int)}, its
+ * working directory, the argument count and the arguments (modified UTF-8). The daemon
+ * closes connections with a wrong token, otherwise it answers with frames of a type byte, a
+ * length and data, ending with an exit frame carrying the exit code.
+ */
+public class DaemonClient {
+    public static final int DEFAULT_PORT = 37641;
+
+    static final int FRAME_EXIT = 0;
+    static final int FRAME_STDOUT = 1;
+    static final int FRAME_STDERR = 2;
+
+    public static void main(String[] args) {
+        int exitCode;
+        try {
+            exitCode = run(getPort(), args, System.out, System.err);
+        } catch (ConnectException | NoSuchFileException e) {
+            // No daemon is running.
+            Main.main(args);
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            exitCode = 1;
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Runs a command in the daemon listening on the port.
+     *
+     * @return Exit code of the command
+     * @throws NoSuchFileException if no daemon of this user runs on the port
+     * @throws ConnectException    if no daemon listens on the port
+     */
+    public static int run(int port, String[] args, PrintStream out, PrintStream err)
+            throws IOException {
+        String token = new String(Files.readAllBytes(tokenFile(port)), StandardCharsets.UTF_8);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream request = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            request.writeUTF(token);
+            request.writeUTF(new File("").getAbsolutePath());
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+
+            DataInputStream response = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            byte[] buffer = new byte[8192];
+            while (true) {
+                int type = response.readUnsignedByte();
+                int length = response.readInt();
+                if (type == FRAME_EXIT) {
+                    out.flush();
+                    err.flush();
+                    return length;
+                }
+                if (length > buffer.length) buffer = new byte[length];
+                response.readFully(buffer, 0, length);
+                OutputStream target = type == FRAME_STDERR ? err : out;
+                target.write(buffer, 0, length);
+            }
+        }
+    }
+
+    static int getPort() {
+        String port = System.getProperty("pranklib.daemon.port");
+        if (port == null) port = System.getenv("PRANKLIB_DAEMON_PORT");
+        return port != null ? Integer.parseInt(port.trim()) : DEFAULT_PORT;
+    }
+
+    /**
+     * @return File with the token of the daemon on the port, readable only by its user.
+     */
+    static Path tokenFile(int port) {
+        return Paths.get(System.getProperty("user.home"), ".pranklib",
+                "daemon-" + port + ".token");
+    }
+}
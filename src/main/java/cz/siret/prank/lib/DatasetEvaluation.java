@@ -0,0 +1,422 @@
+package cz.siret.prank.lib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+
+import cz.siret.prank.lib.utils.BioUtils;
+import cz.siret.prank.lib.utils.Utils;
+
+/**
+ * Compares pocket rankings by P2Rank score, by conservation and by their combination over a
+ * dataset directory.
+ *
+ * For every base.pdb the directory holds the predictions base.pdb_predictions.csv, the
+ * conservation score files of the chains (base_A.scores for ConCavity, baseA.scores
+ * otherwise) and optionally base.pdb_binding-residues.txt, residue ids like "A_42" separated
+ * by blanks or commas. True pockets are given by their ranks in the dataset statistics.
+ *
+ * Proteins are evaluated in parallel, only a few more at a time than there are threads, and
+ * folded into mergeable {@link Statistics}. Per-pocket rows are written as proteins finish,
+ * so memory use does not grow with the size of the dataset.
+ */
+public class DatasetEvaluation {
+    public static final String RAW_HEADER = "file,pocket,rank,score,conservation_mean,"
+            + "conservation_max,conservation_quantile,true_pocket";
+
+    /**
+     * Rank statistics of a set of proteins, made of primitive sums so that the statistics of
+     * parts of a dataset can be merged.
+     */
+    public static final class Statistics {
+        public static final int PRANK = 0;
+        public static final int CONSERVATION = 1;
+        public static final int COMBINED = 2;
+        private static final String[] RANKING_NAMES = {"prank", "conservation", "combi"};
+
+        private int proteins;
+        private int failedProteins;
+        private long pockets;
+        private long truePockets;
+        private long falsePockets;
+        // Sums of 1-based positions of pockets in each ranking.
+        private final long[] truePocketRankSums = new long[RANKING_NAMES.length];
+        private final long[] falsePocketRankSums = new long[RANKING_NAMES.length];
+        private double truePocketConservationSum;
+        private double falsePocketConservationSum;
+        private long ligandResidues;
+        private double ligandScoreSum;
+        private long otherResidues;
+        private double otherScoreSum;
+
+        public void merge(Statistics other) {
+            proteins += other.proteins;
+            failedProteins += other.failedProteins;
+            pockets += other.pockets;
+            truePockets += other.truePockets;
+            falsePockets += other.falsePockets;
+            for (int i = 0; i < RANKING_NAMES.length; i++) {
+                truePocketRankSums[i] += other.truePocketRankSums[i];
+                falsePocketRankSums[i] += other.falsePocketRankSums[i];
+            }
+            truePocketConservationSum += other.truePocketConservationSum;
+            falsePocketConservationSum += other.falsePocketConservationSum;
+            ligandResidues += other.ligandResidues;
+            ligandScoreSum += other.ligandScoreSum;
+            otherResidues += other.otherResidues;
+            otherScoreSum += other.otherScoreSum;
+        }
+
+        /**
+         * @return Number of successfully evaluated proteins.
+         */
+        public int getProteins() {
+            return proteins;
+        }
+
+        public int getFailedProteins() {
+            return failedProteins;
+        }
+
+        public long getPockets() {
+            return pockets;
+        }
+
+        public long getTruePockets() {
+            return truePockets;
+        }
+
+        public double getPocketsPerProteinAvg() {
+            return (double) pockets / proteins;
+        }
+
+        /**
+         * @param ranking {@link #PRANK}, {@link #CONSERVATION} or {@link #COMBINED}
+         * @return Average 1-based position of true pockets in the ranking.
+         */
+        public double getTruePocketRankAvg(int ranking) {
+            return (double) truePocketRankSums[ranking] / truePockets;
+        }
+
+        public double getFalsePocketRankAvg(int ranking) {
+            return (double) falsePocketRankSums[ranking] / falsePockets;
+        }
+
+        public double getTruePocketConservationAvg() {
+            return truePocketConservationSum / truePockets;
+        }
+
+        public double getFalsePocketConservationAvg() {
+            return falsePocketConservationSum / falsePockets;
+        }
+
+        public double getLigandScoreAvg() {
+            return ligandScoreSum / ligandResidues;
+        }
+
+        public double getNonLigandScoreAvg() {
+            return otherScoreSum / otherResidues;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append(String.format("Proteins: %d (%d failed), pockets: %d%n", proteins,
+                    failedProteins, pockets));
+            for (int i = 0; i < RANKING_NAMES.length; i++) {
+                result.append(String.format("True pocket %s rank avg: %f/%f%n",
+                        RANKING_NAMES[i], getTruePocketRankAvg(i), getPocketsPerProteinAvg()));
+            }
+            for (int i = 0; i < RANKING_NAMES.length; i++) {
+                result.append(String.format("False pocket %s rank avg: %f/%f%n",
+                        RANKING_NAMES[i], getFalsePocketRankAvg(i), getPocketsPerProteinAvg()));
+            }
+            result.append(String.format("True pocket conservation avg: %f%n",
+                    getTruePocketConservationAvg()));
+            result.append(String.format("False pocket conservation avg: %f%n",
+                    getFalsePocketConservationAvg()));
+            result.append(String.format("Ligand residue conservation avg: %f%n",
+                    getLigandScoreAvg()));
+            result.append(String.format("Non-ligand residue conservation avg: %f%n",
+                    getNonLigandScoreAvg()));
+            return result.toString();
+        }
+    }
+
+    private static final class ProteinResult {
+        private final Statistics statistics;
+        private final CharSequence rawRows;
+
+        private ProteinResult(Statistics statistics, CharSequence rawRows) {
+            this.statistics = statistics;
+            this.rawRows = rawRows;
+        }
+    }
+
+    private static final int[] NO_RANKS = new int[0];
+    private static final long[] NO_KEYS = new long[0];
+
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Path dir;
+    private final ConservationScore.ScoreFormat format;
+    private final Map<String, int[]> truePocketRanks;
+    private PocketConservation.Combiner combiner = PocketConservation.SCORE_TIMES_MEAN;
+    private double quantile = PocketConservation.DEFAULT_QUANTILE;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param truePocketRanks Map from PDB file names to ranks of their true pockets, see
+     *                        {@link #loadDatasetStatistics(File)}
+     */
+    public DatasetEvaluation(Path dir, ConservationScore.ScoreFormat format,
+                             Map<String, int[]> truePocketRanks) {
+        this.dir = dir;
+        this.format = format;
+        this.truePocketRanks = truePocketRanks;
+    }
+
+    public PocketConservation.Combiner getCombiner() {
+        return combiner;
+    }
+
+    /**
+     * @param combiner Combination of pocket score and conservation for the combined ranking
+     */
+    public void setCombiner(PocketConservation.Combiner combiner) {
+        this.combiner = combiner;
+    }
+
+    public double getQuantile() {
+        return quantile;
+    }
+
+    public void setQuantile(double quantile) {
+        this.quantile = quantile;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Streams the dataset statistics CSV (file name in the 1st column, rank of a true pocket
+     * in the 4th, one header line) to the consumer, line by line.
+     */
+    public static void readDatasetStatistics(File datasetStats, ObjIntConsumer<String> consumer)
+            throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                Utils.INSTANCE.readFile(datasetStats), StandardCharsets.UTF_8))) {
+            // Skip the header.
+            String line = br.readLine();
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                int first = line.indexOf(',');
+                int rankStart = first;
+                for (int i = 0; i < 2 && rankStart >= 0; i++) {
+                    rankStart = line.indexOf(',', rankStart + 1);
+                }
+                if (rankStart < 0) {
+                    throw new IOException("Malformed dataset statistics line: " + line);
+                }
+                int rankEnd = line.indexOf(',', rankStart + 1);
+                String rank = line.substring(rankStart + 1, rankEnd < 0 ? line.length()
+                        : rankEnd).trim();
+                try {
+                    consumer.accept(line.substring(0, first), Integer.parseInt(rank));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed dataset statistics line: " + line, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Map from file names to ranks of their true pockets.
+     */
+    public static Map<String, int[]> loadDatasetStatistics(File datasetStats)
+            throws IOException {
+        Map<String, int[]> result = new HashMap<>();
+        readDatasetStatistics(datasetStats, (fileName, rank) -> result.merge(fileName,
+                new int[]{rank}, (ranks, added) -> {
+                    int[] merged = Arrays.copyOf(ranks, ranks.length + 1);
+                    merged[ranks.length] = added[0];
+                    return merged;
+                }));
+        return result;
+    }
+
+    /**
+     * @param rawOut Receives {@link #RAW_HEADER} and a row per pocket, may be null
+     */
+    public Statistics evaluate(Writer rawOut) throws IOException {
+        Statistics total = new Statistics();
+        if (rawOut != null) {
+            rawOut.write(RAW_HEADER);
+            rawOut.write('\n');
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (DirectoryStream<Path> pdbFiles = Files.newDirectoryStream(dir, "*.pdb")) {
+            Iterator<Path> next = pdbFiles.iterator();
+            Deque<Future<ProteinResult>> inFlight = new ArrayDeque<>();
+            while (next.hasNext() || !inFlight.isEmpty()) {
+                // Keep a bounded window of proteins ahead of the one being reported.
+                while (next.hasNext() && inFlight.size() < threads * 2) {
+                    File pdbFile = next.next().toFile();
+                    inFlight.add(pool.submit(() -> evaluateProtein(pdbFile)));
+                }
+                ProteinResult result = Utils.INSTANCE.await(inFlight.poll());
+                total.merge(result.statistics);
+                if (rawOut != null) rawOut.append(result.rawRows);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        if (rawOut != null) rawOut.flush();
+        return total;
+    }
+
+    private ProteinResult evaluateProtein(File pdbFile) {
+        Statistics statistics = new Statistics();
+        StringBuilder rawRows = new StringBuilder();
+        try {
+            evaluateProtein(pdbFile, statistics, rawRows);
+            statistics.proteins = 1;
+            return new ProteinResult(statistics, rawRows);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to evaluate {}: {}", pdbFile.getName(), e.toString());
+            Statistics failed = new Statistics();
+            failed.failedProteins = 1;
+            return new ProteinResult(failed, "");
+        }
+    }
+
+    private void evaluateProtein(File pdbFile, Statistics statistics, StringBuilder rawRows)
+            throws IOException {
+        String fileName = pdbFile.getName();
+        String nameBase = fileName.substring(0, fileName.length() - 4);
+        Function<String, File> scoreFiles =
+                format == ConservationScore.ScoreFormat.ConCavityFormat
+                        ? chainId -> dir.resolve(nameBase + "_" + chainId + ".scores").toFile()
+                        : chainId -> dir.resolve(nameBase + chainId + ".scores").toFile();
+        ProteinIndex protein = ProteinIndex.of(BioUtils.INSTANCE.loadPdbFile(pdbFile));
+        ConservationScore score = ConservationScore.fromFiles(protein, scoreFiles, format);
+        if (score == null) {
+            throw new IOException("No conservation scores.");
+        }
+        List<Pocket> pockets;
+        try (InputStream in = Utils.INSTANCE.readFile(
+                dir.resolve(fileName + "_predictions.csv").toFile())) {
+            pockets = PocketCsvReader.read(in);
+        }
+
+        int[] trueRanks = truePocketRanks.getOrDefault(fileName, NO_RANKS);
+        PocketConservation conservation = new PocketConservation(score, quantile);
+        List<PocketConservation.Stats> byPrank = conservation.aggregate(pockets);
+        addRanks(statistics, Statistics.PRANK, byPrank, trueRanks);
+        addRanks(statistics, Statistics.CONSERVATION,
+                PocketConservation.rank(byPrank, PocketConservation.MEAN), trueRanks);
+        addRanks(statistics, Statistics.COMBINED,
+                PocketConservation.rank(byPrank, combiner), trueRanks);
+
+        statistics.pockets = pockets.size();
+        for (PocketConservation.Stats stats : byPrank) {
+            Pocket pocket = stats.getPocket();
+            boolean truePocket = contains(trueRanks, pocket.getRank());
+            if (truePocket) {
+                statistics.truePockets++;
+                statistics.truePocketConservationSum += stats.getMean();
+            } else {
+                statistics.falsePockets++;
+                statistics.falsePocketConservationSum += stats.getMean();
+            }
+            rawRows.append(fileName).append(',').append(pocket.getName()).append(',')
+                    .append(pocket.getRank()).append(',').append(pocket.getScore()).append(',')
+                    .append(stats.getMean()).append(',').append(stats.getMax()).append(',')
+                    .append(stats.getQuantile()).append(',').append(truePocket ? 1 : 0)
+                    .append('\n');
+        }
+
+        long[] ligandKeys = loadBindingResidues(
+                dir.resolve(fileName + "_binding-residues.txt").toFile());
+        score.forEachScore((key, value) -> {
+            if (Arrays.binarySearch(ligandKeys, key) >= 0) {
+                statistics.ligandResidues++;
+                statistics.ligandScoreSum += value;
+            } else {
+                statistics.otherResidues++;
+                statistics.otherScoreSum += value;
+            }
+        });
+    }
+
+    private static void addRanks(Statistics statistics, int ranking,
+                                 List<PocketConservation.Stats> ranked, int[] trueRanks) {
+        for (int i = 0; i < ranked.size(); i++) {
+            if (contains(trueRanks, ranked.get(i).getPocket().getRank())) {
+                statistics.truePocketRankSums[ranking] += i + 1;
+            } else {
+                statistics.falsePocketRankSums[ranking] += i + 1;
+            }
+        }
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Sorted keys of the binding residues, empty if the file does not exist.
+     */
+    private static long[] loadBindingResidues(File bindingResidues) throws IOException {
+        if (!bindingResidues.exists()) return NO_KEYS;
+        String content;
+        try (InputStream in = Utils.INSTANCE.readFile(bindingResidues)) {
+            content = Utils.INSTANCE.convertStreamToString(in, false);
+        }
+        String[] ids = content.trim().split("[\\s,]+");
+        long[] keys = new long[ids.length];
+        int count = 0;
+        for (String id : ids) {
+            if (id.isEmpty()) continue;
+            try {
+                keys[count++] = ResidueNumberWrapper.toKey(id);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed binding residue " + id + " in "
+                        + bindingResidues.getName(), e);
+            }
+        }
+        keys = Arrays.copyOf(keys, count);
+        Arrays.sort(keys);
+        return keys;
+    }
+}
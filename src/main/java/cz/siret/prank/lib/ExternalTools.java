@@ -1,21 +1,27 @@
 package cz.siret.prank.lib;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.biojava.nbio.structure.Structure;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
 
+import cz.siret.prank.lib.utils.BioUtils;
+import cz.siret.prank.lib.utils.ProcessResult;
+import cz.siret.prank.lib.utils.ProcessRunner;
+import cz.siret.prank.lib.utils.ResidueAlphabet;
+import cz.siret.prank.lib.utils.ScriptWorkerPool;
 import cz.siret.prank.lib.utils.Tuple;
 import cz.siret.prank.lib.utils.Tuple2;
 import cz.siret.prank.lib.utils.Utils;
@@ -23,9 +29,31 @@ import cz.siret.prank.lib.utils.Utils;
 public class ExternalTools {
     private final transient Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * Script argument standing for standard input in the streaming mode.
+     */
+    public static final String STDIN_ARG = "-";
+
+    /**
+     * Worker pools of the conservation scripts, shared by all instances.
+     */
+    private static final Map<String, ScriptWorkerPool> WORKER_POOLS = new HashMap<>();
+
+    /**
+     * Process runners by concurrency limit, shared by all instances so that the limit also
+     * holds for commands running at the same time in a batch or the daemon.
+     */
+    private static final Map<Integer, ProcessRunner> PROCESS_RUNNERS = new HashMap<>();
+
     private String hsspToFastaScript;
     private String msaToConservationScript;
     private Path hsspDir;
+    private boolean streaming;
+    private ProcessRunner processRunner =
+            sharedProcessRunner(Runtime.getRuntime().availableProcessors());
+    private long processTimeoutMillis;
+    private int persistentWorkers;
+    private ConservationCache conservationCache;
 
     public ExternalTools(String hsspToFastaScript, String msaToConservationScript, String hsspDir) {
         this.hsspToFastaScript = hsspToFastaScript;
@@ -33,6 +61,80 @@ public class ExternalTools {
         this.hsspDir = hsspDir != null ? Paths.get(hsspDir) : null;
     }
 
+    /**
+     * Limits the number of script processes running at the same time, chains are processed
+     * in parallel up to this limit. Defaults to the number of processors. The limit is shared
+     * with other instances using the same one.
+     */
+    public void setMaxConcurrentProcesses(int maxConcurrentProcesses) {
+        this.processRunner = sharedProcessRunner(maxConcurrentProcesses);
+    }
+
+    private static ProcessRunner sharedProcessRunner(int maxConcurrentProcesses) {
+        synchronized (PROCESS_RUNNERS) {
+            return PROCESS_RUNNERS.computeIfAbsent(Math.max(1, maxConcurrentProcesses),
+                    ProcessRunner::new);
+        }
+    }
+
+    public int getPersistentWorkers() {
+        return persistentWorkers;
+    }
+
+    /**
+     * Enables the worker mode, only for conservation scripts that implement the
+     * {@link ScriptWorkerPool} protocol. The script is not started with the worker argument
+     * unless this is set.
+     *
+     * @param persistentWorkers Number of long-lived conservation script processes reused
+     *                          across chains and PDB ids. 0 (default) starts the script once
+     *                          per chain, which is also the fallback when the script fails
+     *                          the handshake.
+     */
+    public void setPersistentWorkers(int persistentWorkers) {
+        this.persistentWorkers = persistentWorkers;
+    }
+
+    public long getProcessTimeoutMillis() {
+        return processTimeoutMillis;
+    }
+
+    /**
+     * @param processTimeoutMillis Time after which a script is killed, 0 (default) for no
+     *                             limit
+     */
+    public void setProcessTimeoutMillis(long processTimeoutMillis) {
+        this.processTimeoutMillis = processTimeoutMillis;
+    }
+
+    public ConservationCache getConservationCache() {
+        return conservationCache;
+    }
+
+    /**
+     * @param conservationCache Cache of MSAs and conservation scores, keyed by chain sequence
+     *                          or MSA content and the identity of the scripts. null (default)
+     *                          disables caching.
+     */
+    public void setConservationCache(ConservationCache conservationCache) {
+        this.conservationCache = conservationCache;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * In the streaming mode the decompressed HSSP file is piped into the hssp->fasta script,
+     * MSAs are piped into the conservation script and its output is captured in memory, so
+     * no intermediate files other than the per-chain FASTA output of the first script are
+     * written. Both scripts have to accept {@value #STDIN_ARG} in place of their input path:
+     * {@code hsspToFasta pdbId - fastaDir} and {@code msaToConservation -}.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
     public Map<String, File> getMSAsfromHSSP(String pdbId) throws IOException,
             InterruptedException {
         pdbId = pdbId.toLowerCase();
@@ -48,8 +150,7 @@ public class ExternalTools {
                 if (!hsspFile.exists()) return result;
                 Path tempHsspDir = Files.createTempDirectory(pdbId.concat("_hssp"));
                 Path tempFastaDir = Files.createTempDirectory(pdbId.concat("_fasta"));
-                try (InputStream in = new BZip2CompressorInputStream(
-                        new FileInputStream(hsspFile))) {
+                try (InputStream in = Utils.INSTANCE.readBzip2File(hsspFile)) {
                     Files.copy(in, tempHsspDir.resolve(pdbId.concat(".hssp")),
                             StandardCopyOption.REPLACE_EXISTING);
                 }
@@ -59,12 +160,12 @@ public class ExternalTools {
                         pdbId, tempHsspDir.toAbsolutePath().toString(),
                         tempFastaDir.toAbsolutePath().toString());
                 processBuilder.directory(scriptFile.getParentFile());
-                Process process = processBuilder.start();
-                int exitCode = process.waitFor();
-                logger.info("Hssp2Fasta script finished with exit code: {}", exitCode);
+                ProcessResult processResult = processRunner.run(processBuilder, null, null,
+                        processTimeoutMillis);
+                logger.info("Hssp2Fasta script finished: {}", processResult);
 
                 File[] files = tempFastaDir.toFile().listFiles();
-                for (File f : files) {
+                for (File f : files != null ? files : new File[0]) {
                     String name = f.getName();
                     String chainId = name.substring(pdbId.length(),
                             name.length() - ".hssp.fasta".length());
@@ -87,20 +188,307 @@ public class ExternalTools {
         Map<String, File> result = new HashMap<>();
         if (msaToConservationScript != null) {
             File scriptFile = new File(msaToConservationScript);
-            if (scriptFile.exists()) {
-                for (Map.Entry<String, File> msa : msas.entrySet()) {
+            ScriptWorkerPool workers = scriptFile.exists() ? getWorkerPool() : null;
+            Map<String, String> msaKeys = new HashMap<>();
+            Map<String, File> missing = new HashMap<>();
+            // Identical chains usually get identical MSAs, those are scored only once. MSAs
+            // can be hundreds of MB, so they are compared by digest and never held in memory.
+            Map<String, String> firstByKey = new HashMap<>();
+            Map<String, String> duplicates = new HashMap<>();
+            for (Map.Entry<String, File> msa : msas.entrySet()) {
+                String key = msaCacheKey(msa.getValue().toPath());
+                String first = firstByKey.putIfAbsent(key, msa.getKey());
+                if (first != null) {
+                    duplicates.put(msa.getKey(), first);
+                    continue;
+                }
+                if (conservationCache != null) {
+                    byte[] cached = conservationCache.get(key, ConservationCache.SCORES);
+                    if (cached != null) {
+                        logger.info("Cached conservation for chain: {}", msa.getKey());
+                        File resultFile = scoreFileFor(msa.getValue());
+                        Files.write(resultFile.toPath(), cached);
+                        result.put(msa.getKey(), resultFile);
+                        continue;
+                    }
+                    msaKeys.put(msa.getKey(), key);
+                }
+                missing.put(msa.getKey(), msa.getValue());
+            }
+            if (workers != null) {
+                Map<String, Future<byte[]>> requests = new HashMap<>();
+                for (Map.Entry<String, File> msa : missing.entrySet()) {
+                    logger.info("Calculating conservation for chain: {}", msa.getKey());
+                    requests.put(msa.getKey(), workers.submit(msa.getValue().toPath(),
+                            processTimeoutMillis));
+                }
+                for (Map.Entry<String, byte[]> score : awaitWorkers(requests).entrySet()) {
+                    File resultFile = scoreFileFor(msas.get(score.getKey()));
+                    Files.write(resultFile.toPath(), score.getValue());
+                    cacheScores(msaKeys.get(score.getKey()), score.getValue());
+                    result.put(score.getKey(), resultFile);
+                }
+            } else if (scriptFile.exists()) {
+                // All chains run concurrently, limited by the process runner.
+                Map<String, Future<ProcessResult>> processes = new HashMap<>();
+                Map<String, File> resultFiles = new HashMap<>();
+                for (Map.Entry<String, File> msa : missing.entrySet()) {
                     logger.info("Calculating conservation for chain: {}", msa.getKey());
                     ProcessBuilder processBuilder = new ProcessBuilder(scriptFile.getAbsolutePath(),
                             msa.getValue().getAbsolutePath());
                     processBuilder.directory(scriptFile.getParentFile());
-                    String newName = msa.getValue().getName().replaceFirst(".fasta$", ".hom");
-                    Path resultFile = Paths.get(msa.getValue().getParent(), newName);
-                    processBuilder.redirectOutput(resultFile.toFile());
-                    Process process = processBuilder.start();
-                    int exitCode = process.waitFor();
-                    logger.info("JSD script finished with exit code: {}", exitCode);
-                    result.put(msa.getKey(), resultFile.toFile());
+                    File resultFile = scoreFileFor(msa.getValue());
+                    processBuilder.redirectOutput(resultFile);
+                    processes.put(msa.getKey(), processRunner.submit(processBuilder, null, null,
+                            processTimeoutMillis));
+                    resultFiles.put(msa.getKey(), resultFile);
                 }
+                for (Map.Entry<String, Future<ProcessResult>> process : processes.entrySet()) {
+                    ProcessResult processResult = Utils.INSTANCE.await(process.getValue());
+                    logger.info("JSD script finished for chain {}: {}", process.getKey(),
+                            processResult);
+                    File resultFile = resultFiles.get(process.getKey());
+                    if (processResult.isSuccess()) {
+                        if (msaKeys.containsKey(process.getKey())) {
+                            cacheScores(msaKeys.get(process.getKey()),
+                                    Files.readAllBytes(resultFile.toPath()));
+                        }
+                        result.put(process.getKey(), resultFile);
+                    } else {
+                        resultFile.delete();
+                    }
+                }
+            }
+            for (Map.Entry<String, String> duplicate : duplicates.entrySet()) {
+                File firstResult = result.get(duplicate.getValue());
+                if (firstResult == null) continue;
+                File resultFile = scoreFileFor(msas.get(duplicate.getKey()));
+                Files.copy(firstResult.toPath(), resultFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                result.put(duplicate.getKey(), resultFile);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Streaming counterpart of {@link #getMSAsfromHSSP(String)}.
+     *
+     * @return Map from chain ids to MSAs in FASTA format
+     */
+    public Map<String, byte[]> getMSAsfromHSSPInMemory(String pdbId) throws IOException,
+            InterruptedException {
+        pdbId = pdbId.toLowerCase();
+        logger.info("Getting MSA from HSSP for PDB: {}", pdbId);
+        Map<String, byte[]> result = new HashMap<>();
+        if (hsspToFastaScript == null || hsspDir == null) return result;
+        File scriptFile = new File(hsspToFastaScript);
+        if (!scriptFile.exists() || !hsspDir.toFile().exists()) return result;
+        File hsspFile = hsspDir.resolve(pdbId.concat(".hssp.bz2")).toFile();
+        logger.info("Looking for {}", hsspFile.getAbsolutePath());
+        if (!hsspFile.exists()) return result;
+
+        Path tempFastaDir = Files.createTempDirectory(pdbId.concat("_fasta"));
+        try {
+            logger.info("Converting hssp->fasta :{}", hsspFile.getName());
+            ProcessBuilder processBuilder = new ProcessBuilder(scriptFile.getAbsolutePath(),
+                    pdbId, STDIN_ARG, tempFastaDir.toAbsolutePath().toString());
+            processBuilder.directory(scriptFile.getParentFile());
+            ProcessResult processResult;
+            try (InputStream hssp = Utils.INSTANCE.readBzip2File(hsspFile)) {
+                processResult = processRunner.run(processBuilder, hssp, null,
+                        processTimeoutMillis);
+            }
+            logger.info("Hssp2Fasta script finished: {}", processResult);
+
+            File[] files = tempFastaDir.toFile().listFiles();
+            for (File f : files != null ? files : new File[0]) {
+                String name = f.getName();
+                String chainId = name.substring(pdbId.length(),
+                        name.length() - ".hssp.fasta".length());
+                result.put(chainId, Files.readAllBytes(f.toPath()));
+            }
+        } finally {
+            Utils.INSTANCE.deleteDirRecursively(tempFastaDir);
+        }
+        return result;
+    }
+
+    /**
+     * Streaming counterpart of {@link #getConservationFromMSAs(Map)}.
+     *
+     * @return Map from chain ids to the conservation script output (JSD format)
+     */
+    public Map<String, byte[]> getConservationFromMSAsInMemory(Map<String, byte[]> msas)
+            throws IOException, InterruptedException {
+        Map<String, byte[]> result = new HashMap<>();
+        if (msaToConservationScript == null) return result;
+        File scriptFile = new File(msaToConservationScript);
+        if (!scriptFile.exists()) return result;
+        Map<String, String> msaKeys = new HashMap<>();
+        Map<String, byte[]> missing = new HashMap<>();
+        // Identical chains usually get identical MSAs, those are scored only once.
+        Map<ByteBuffer, String> firstByContent = new HashMap<>();
+        Map<String, String> duplicates = new HashMap<>();
+        for (Map.Entry<String, byte[]> msa : msas.entrySet()) {
+            String first = firstByContent.putIfAbsent(ByteBuffer.wrap(msa.getValue()),
+                    msa.getKey());
+            if (first != null) {
+                duplicates.put(msa.getKey(), first);
+                continue;
+            }
+            if (conservationCache != null) {
+                String key = msaCacheKey(msa.getValue());
+                byte[] cached = conservationCache.get(key, ConservationCache.SCORES);
+                if (cached != null) {
+                    logger.info("Cached conservation for chain: {}", msa.getKey());
+                    result.put(msa.getKey(), cached);
+                    continue;
+                }
+                msaKeys.put(msa.getKey(), key);
+            }
+            missing.put(msa.getKey(), msa.getValue());
+        }
+        ScriptWorkerPool workers = getWorkerPool();
+        if (workers != null) {
+            Map<String, Future<byte[]>> requests = new HashMap<>();
+            for (Map.Entry<String, byte[]> msa : missing.entrySet()) {
+                logger.info("Calculating conservation for chain: {}", msa.getKey());
+                requests.put(msa.getKey(), workers.submit(msa.getValue(), processTimeoutMillis));
+            }
+            for (Map.Entry<String, byte[]> score : awaitWorkers(requests).entrySet()) {
+                cacheScores(msaKeys.get(score.getKey()), score.getValue());
+                result.put(score.getKey(), score.getValue());
+            }
+        } else {
+            Map<String, Future<ProcessResult>> processes = new HashMap<>();
+            for (Map.Entry<String, byte[]> msa : missing.entrySet()) {
+                logger.info("Calculating conservation for chain: {}", msa.getKey());
+                ProcessBuilder processBuilder = new ProcessBuilder(scriptFile.getAbsolutePath(),
+                        STDIN_ARG);
+                processBuilder.directory(scriptFile.getParentFile());
+                processes.put(msa.getKey(), processRunner.submit(processBuilder,
+                        new ByteArrayInputStream(msa.getValue()), null, processTimeoutMillis));
+            }
+            for (Map.Entry<String, Future<ProcessResult>> process : processes.entrySet()) {
+                ProcessResult processResult = Utils.INSTANCE.await(process.getValue());
+                logger.info("JSD script finished for chain {}: {}", process.getKey(),
+                        processResult);
+                if (processResult.isSuccess()) {
+                    cacheScores(msaKeys.get(process.getKey()), processResult.getOutput());
+                    result.put(process.getKey(), processResult.getOutput());
+                }
+            }
+        }
+        for (Map.Entry<String, String> duplicate : duplicates.entrySet()) {
+            byte[] firstResult = result.get(duplicate.getValue());
+            if (firstResult != null) result.put(duplicate.getKey(), firstResult);
+        }
+        return result;
+    }
+
+    /**
+     * Computes MSAs and conservation for all protein chains and stores them gzipped in
+     * destDir as baseName + chainId + ".fasta.gz" and baseName + chainId + ".hom.gz".
+     *
+     * In the streaming mode the data goes from the scripts straight to the destination
+     * files, otherwise the file based scripts are used and the results copied.
+     *
+     * @return Map from chain ids to (MSA, conservation) files in destDir
+     */
+    public Map<String, Tuple2<File, File>> getConservationAndMSAsFromHSSPToDir(
+            String pdbId, Structure protein, Path destDir, String baseName)
+            throws IOException, InterruptedException {
+        return getConservationAndMSAsFromHSSPToDir(pdbId, ProteinIndex.of(protein), destDir,
+                baseName);
+    }
+
+    public Map<String, Tuple2<File, File>> getConservationAndMSAsFromHSSPToDir(
+            String pdbId, ProteinIndex protein, Path destDir, String baseName)
+            throws IOException, InterruptedException {
+        Map<String, String> chainKeys = chainCacheKeys(protein);
+        Map<String, Tuple2<byte[], byte[]>> cached = getCachedChains(pdbId, chainKeys);
+        if (cached != null) {
+            Map<String, Tuple2<File, File>> result = new HashMap<>();
+            for (Map.Entry<String, Tuple2<byte[], byte[]>> chain : cached.entrySet()) {
+                File msaFile = destDir.resolve(baseName.concat(chain.getKey())
+                        .concat(".fasta.gz")).toFile();
+                File scoreFile = destDir.resolve(baseName.concat(chain.getKey())
+                        .concat(".hom.gz")).toFile();
+                Utils.INSTANCE.gzipToFile(chain.getValue().getItem1(), msaFile);
+                Utils.INSTANCE.gzipToFile(chain.getValue().getItem2(), scoreFile);
+                result.put(chain.getKey(), Tuple.create(msaFile, scoreFile));
+            }
+            logger.info("Conservation cache hit: {}", result);
+            return result;
+        }
+        if (!streaming) {
+            return BioUtils.INSTANCE.copyAndGzipConservationAndMSAsToDir(
+                    computeConsevationAndMSAsFromHSSP(pdbId, protein, chainKeys), baseName,
+                    destDir);
+        }
+        Map<String, byte[]> msas = getMSAsfromHSSPInMemory(pdbId);
+        Map<String, byte[]> scores = getConservationFromMSAsInMemory(msas);
+        Map<String, ChainScores> parsedScores = new HashMap<>();
+        for (Map.Entry<String, byte[]> score : scores.entrySet()) {
+            try {
+                parsedScores.put(score.getKey(), ScoreFileParser.parse(
+                        new ByteArrayInputStream(score.getValue()),
+                        ConservationScore.ScoreFormat.JSDFormat));
+            } catch (NumberFormatException e) {
+                logger.error("Invalid conservation output for chain " + score.getKey(), e);
+            }
+        }
+        Map<String, String> chainMatching = ConservationScore.pickParsedScores(protein,
+                parsedScores);
+        cacheUnmatchedChains(pdbId, chainKeys, chainMatching,
+                !msas.isEmpty() && parsedScores.size() == msas.size());
+        Map<String, Tuple2<File, File>> result = new HashMap<>();
+        for (Map.Entry<String, String> chainMatch : chainMatching.entrySet()) {
+            logger.info("Chains matched. {}->{}", chainMatch.getKey(), chainMatch.getValue());
+            File msaFile = destDir.resolve(baseName.concat(chainMatch.getKey())
+                    .concat(".fasta.gz")).toFile();
+            File scoreFile = destDir.resolve(baseName.concat(chainMatch.getKey())
+                    .concat(".hom.gz")).toFile();
+            byte[] msa = msas.get(chainMatch.getValue());
+            byte[] score = scores.get(chainMatch.getValue());
+            Utils.INSTANCE.gzipToFile(msa, msaFile);
+            Utils.INSTANCE.gzipToFile(score, scoreFile);
+            cacheChain(chainKeys.get(chainMatch.getKey()), msa, score);
+            result.put(chainMatch.getKey(), Tuple.create(msaFile, scoreFile));
+        }
+        logger.info(result.toString());
+        return result;
+    }
+
+    /**
+     * @return Worker pool of the conservation script, null if persistent workers are off or
+     * the script does not support them.
+     */
+    private ScriptWorkerPool getWorkerPool() throws InterruptedException {
+        if (persistentWorkers <= 0) return null;
+        String script = new File(msaToConservationScript).getAbsolutePath();
+        ScriptWorkerPool pool;
+        synchronized (WORKER_POOLS) {
+            pool = WORKER_POOLS.computeIfAbsent(script,
+                    s -> new ScriptWorkerPool(s, persistentWorkers));
+        }
+        return pool.isSupported() ? pool : null;
+    }
+
+    /**
+     * @return Responses of the successful requests.
+     */
+    private Map<String, byte[]> awaitWorkers(Map<String, Future<byte[]>> requests)
+            throws IOException {
+        Map<String, byte[]> result = new HashMap<>();
+        for (Map.Entry<String, Future<byte[]>> request : requests.entrySet()) {
+            try {
+                result.put(request.getKey(), Utils.INSTANCE.await(request.getValue()));
+                logger.info("JSD worker finished for chain {}", request.getKey());
+            } catch (IOException e) {
+                logger.warn("JSD worker failed for chain {}: {}", request.getKey(),
+                        e.toString());
             }
         }
         return result;
@@ -109,17 +497,155 @@ public class ExternalTools {
     public Map<String, Tuple2<File, File>> getConsevationAndMSAsFromHSSP(String pdbId,
                                                                          Structure protein)
             throws IOException, InterruptedException {
+        return getConsevationAndMSAsFromHSSP(pdbId, ProteinIndex.of(protein));
+    }
+
+    public Map<String, Tuple2<File, File>> getConsevationAndMSAsFromHSSP(String pdbId,
+                                                                         ProteinIndex protein)
+            throws IOException, InterruptedException {
+        Map<String, String> chainKeys = chainCacheKeys(protein);
+        Map<String, Tuple2<byte[], byte[]>> cached = getCachedChains(pdbId, chainKeys);
+        if (cached == null) {
+            return computeConsevationAndMSAsFromHSSP(pdbId, protein, chainKeys);
+        }
+        // Callers own (and usually delete) the returned files, so hand out copies.
+        Map<String, Tuple2<File, File>> result = new HashMap<>();
+        for (Map.Entry<String, Tuple2<byte[], byte[]>> chain : cached.entrySet()) {
+            File msaFile = File.createTempFile("msa", ".fasta");
+            File scoreFile = scoreFileFor(msaFile);
+            Files.write(msaFile.toPath(), chain.getValue().getItem1());
+            Files.write(scoreFile.toPath(), chain.getValue().getItem2());
+            result.put(chain.getKey(), Tuple.create(msaFile, scoreFile));
+        }
+        logger.info("Conservation cache hit: {}", result);
+        return result;
+    }
+
+    private Map<String, Tuple2<File, File>> computeConsevationAndMSAsFromHSSP(
+            String pdbId, ProteinIndex protein, Map<String, String> chainKeys)
+            throws IOException, InterruptedException {
         Map<String, Tuple2<File, File>> result = new HashMap<>();
         Map<String, File> msas = getMSAsfromHSSP(pdbId);
         Map<String, File> scores = getConservationFromMSAs(msas);
         Map<String, String> chainMatching = ConservationScore.pickScores(protein, scores);
+        cacheUnmatchedChains(pdbId, chainKeys, chainMatching,
+                !msas.isEmpty() && scores.size() == msas.size());
         for (Map.Entry<String, String> chainMatch : chainMatching.entrySet()) {
             logger.info("Chains matched. {}->{}", chainMatch.getKey(), chainMatch.getValue());
-            result.put(chainMatch.getKey(), Tuple.create(
-                    msas.get(chainMatch.getValue()), scores.get(chainMatch.getValue())));
+            File msaFile = msas.get(chainMatch.getValue());
+            File scoreFile = scores.get(chainMatch.getValue());
+            String chainKey = chainKeys.get(chainMatch.getKey());
+            if (conservationCache != null && chainKey != null) {
+                conservationCache.put(chainKey, ConservationCache.MSA, msaFile.toPath());
+                conservationCache.put(chainKey, ConservationCache.SCORES, scoreFile.toPath());
+            }
+            result.put(chainMatch.getKey(), Tuple.create(msaFile, scoreFile));
         }
         logger.info(result.toString());
         return result;
     }
 
+    /**
+     * @return Identity of a script for cache keys; changes when the script is edited.
+     */
+    private static String scriptIdentity(String script) {
+        if (script == null) return "";
+        File file = new File(script).getAbsoluteFile();
+        return file.getPath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    private String msaCacheKey(byte[] msa) {
+        return ConservationCache.key(msa, "msa", scriptIdentity(msaToConservationScript));
+    }
+
+    private String msaCacheKey(Path msa) throws IOException {
+        return ConservationCache.key(msa, "msa", scriptIdentity(msaToConservationScript));
+    }
+
+    /**
+     * @return Cache keys of the protein chains by chain id, empty if caching is off.
+     */
+    private Map<String, String> chainCacheKeys(ProteinIndex protein) {
+        Map<String, String> result = new HashMap<>();
+        if (conservationCache == null) return result;
+        String tools = scriptIdentity(hsspToFastaScript) + "|"
+                + scriptIdentity(msaToConservationScript) + "|" + hsspDir;
+        for (ProteinIndex.ProteinChain chain : protein.getChains()) {
+            String firstKey = result.get(chain.getFirstIdenticalId());
+            if (firstKey != null) {
+                result.put(chain.getId(), firstKey);
+                continue;
+            }
+            String sequence = ResidueAlphabet.INSTANCE.decode(chain.getCodes());
+            result.put(chain.getId(), ConservationCache.key("chain", tools, sequence));
+        }
+        return result;
+    }
+
+    /**
+     * @return Key of the entry of a chain without results in the HSSP file of the PDB entry.
+     * Unlike results, the lack of them holds for that HSSP file only.
+     */
+    private static String noMatchKey(String pdbId, String chainKey) {
+        return ConservationCache.key("none", pdbId.toLowerCase(), chainKey);
+    }
+
+    /**
+     * @return Cached (MSA, conservation) of every chain with results, null unless all chains
+     * are cached, including those known to have no results in the HSSP file of pdbId.
+     */
+    private Map<String, Tuple2<byte[], byte[]>> getCachedChains(String pdbId,
+                                                               Map<String, String> chainKeys) {
+        if (conservationCache == null || chainKeys.isEmpty()) return null;
+        Map<String, Tuple2<byte[], byte[]>> result = new HashMap<>();
+        for (Map.Entry<String, String> chainKey : chainKeys.entrySet()) {
+            byte[] msa = conservationCache.get(chainKey.getValue(), ConservationCache.MSA);
+            if (msa == null) {
+                if (conservationCache.get(noMatchKey(pdbId, chainKey.getValue()),
+                        ConservationCache.NO_MATCH) != null) {
+                    continue;
+                }
+                return null;
+            }
+            byte[] scores = conservationCache.get(chainKey.getValue(), ConservationCache.SCORES);
+            if (scores == null) return null;
+            result.put(chainKey.getKey(), Tuple.create(msa, scores));
+        }
+        return result;
+    }
+
+    private void cacheChain(String key, byte[] msa, byte[] scores) {
+        if (conservationCache == null || key == null) return;
+        conservationCache.put(key, ConservationCache.MSA, msa);
+        conservationCache.put(key, ConservationCache.SCORES, scores);
+    }
+
+    /**
+     * Remembers the chains without a matching MSA in the HSSP file of pdbId, so that the
+     * entry is a cache hit even with such chains.
+     *
+     * @param complete Whether the HSSP file was found and every MSA scored; failed scripts
+     *                 are not remembered
+     */
+    private void cacheUnmatchedChains(String pdbId, Map<String, String> chainKeys,
+                                      Map<String, String> chainMatching, boolean complete) {
+        if (conservationCache == null || !complete) return;
+        for (Map.Entry<String, String> chainKey : chainKeys.entrySet()) {
+            if (!chainMatching.containsKey(chainKey.getKey())) {
+                conservationCache.put(noMatchKey(pdbId, chainKey.getValue()),
+                        ConservationCache.NO_MATCH, new byte[0]);
+            }
+        }
+    }
+
+    private void cacheScores(String msaKey, byte[] scores) {
+        if (conservationCache == null || msaKey == null) return;
+        conservationCache.put(msaKey, ConservationCache.SCORES, scores);
+    }
+
+    private static File scoreFileFor(File msaFile) {
+        return new File(msaFile.getParentFile(),
+                msaFile.getName().replaceFirst(".fasta$", ".hom"));
+    }
+
 }
@@ -0,0 +1,397 @@
+package cz.siret.prank.lib;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams {@link Sequence}, {@link Pocket} and {@link Batch.Result} objects as JSON, with the
+ * same field names as their getters.
+ *
+ * Values go straight from the primitive arrays into a byte buffer, without reflection or
+ * intermediate strings. Floats are written in their shortest form that parses back to the
+ * same float, non-finite numbers as null. Every write call produces one JSON value.
+ */
+public final class JsonWriter implements Closeable, Flushable {
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final double[] POWERS_OF_TEN = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+            1e9};
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+
+    public JsonWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * @param gzip Compress the output with gzip
+     */
+    public JsonWriter(OutputStream out, boolean gzip) throws IOException {
+        this.out = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : out;
+    }
+
+    public JsonWriter(WritableByteChannel channel, boolean gzip) throws IOException {
+        this(Channels.newOutputStream(channel), gzip);
+    }
+
+    public JsonWriter writeSequence(Sequence sequence) throws IOException {
+        if (sequence == null) {
+            writeNull();
+            return this;
+        }
+        writeByte('{');
+        writeName("indices", false);
+        writeIndices(sequence);
+        writeName("seq", true);
+        writeResidues(sequence.getResidues());
+        writeName("scores", true);
+        writeFloats(sequence.getScoreValues());
+        writeName("regions", true);
+        writeRegions(sequence.getRegions());
+        writeName("bindingSites", true);
+        writeInts(sequence.getBindingSites());
+        writeByte('}');
+        return this;
+    }
+
+    public JsonWriter writePockets(List<Pocket> pockets) throws IOException {
+        if (pockets == null) {
+            writeNull();
+            return this;
+        }
+        writeByte('[');
+        for (int i = 0; i < pockets.size(); i++) {
+            if (i > 0) writeByte(',');
+            writePocket(pockets.get(i));
+        }
+        writeByte(']');
+        return this;
+    }
+
+    public JsonWriter writePocket(Pocket pocket) throws IOException {
+        if (pocket == null) {
+            writeNull();
+            return this;
+        }
+        writeByte('{');
+        writeName("name", false);
+        writeString(pocket.getName());
+        writeName("rank", true);
+        writeInt(pocket.getRank());
+        writeName("score", true);
+        writeFloat(pocket.getScore());
+        writeName("numOfConnollyPoints", true);
+        writeInt(pocket.getNumOfConnollyPoints());
+        writeName("numOfSurfaceAtoms", true);
+        writeInt(pocket.getNumOfSurfaceAtoms());
+        writeName("centerX", true);
+        writeFloat(pocket.getCenterX());
+        writeName("centerY", true);
+        writeFloat(pocket.getCenterY());
+        writeName("centerZ", true);
+        writeFloat(pocket.getCenterZ());
+        writeName("residueIds", true);
+        writeStrings(pocket.getResidueIds());
+        writeName("surfAtomIds", true);
+        writeInts(pocket.getSurfAtomIds());
+        writeByte('}');
+        return this;
+    }
+
+    public JsonWriter writeJobResult(Batch.Result result) throws IOException {
+        writeByte('{');
+        writeName("id", false);
+        writeString(result.getId());
+        writeName("command", true);
+        writeString(result.getCommand());
+        writeName("exitCode", true);
+        writeInt(result.getExitCode());
+        writeName("stdout", true);
+        writeString(result.getOutput());
+        writeName("stderr", true);
+        writeString(result.getError());
+        writeByte('}');
+        return this;
+    }
+
+    /**
+     * Writes a line break, for JSON lines output.
+     */
+    public JsonWriter writeLineSeparator() throws IOException {
+        writeByte('\n');
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Flushes the buffer, finishes the gzip stream and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        drain();
+        out.close();
+    }
+
+    private void writeIndices(Sequence sequence) throws IOException {
+        int[] seqNums = sequence.getSeqNums();
+        if (seqNums == null) {
+            writeNull();
+            return;
+        }
+        int[] insCodePositions = sequence.getInsCodePositions();
+        byte[] insCodes = sequence.getInsCodes();
+        int ins = 0;
+        writeByte('[');
+        for (int i = 0; i < seqNums.length; i++) {
+            if (i > 0) writeByte(',');
+            writeByte('"');
+            writeInt(seqNums[i]);
+            if (insCodePositions != null && ins < insCodePositions.length
+                    && insCodePositions[ins] == i) {
+                writeChar((char) (insCodes[ins++] & 0x7F));
+            }
+            writeByte('"');
+        }
+        writeByte(']');
+    }
+
+    private void writeResidues(byte[] residues) throws IOException {
+        if (residues == null) {
+            writeNull();
+            return;
+        }
+        writeByte('[');
+        for (int i = 0; i < residues.length; i++) {
+            if (i > 0) writeByte(',');
+            writeByte('"');
+            writeChar((char) (residues[i] & 0x7F));
+            writeByte('"');
+        }
+        writeByte(']');
+    }
+
+    private void writeRegions(Sequence.Region[] regions) throws IOException {
+        if (regions == null) {
+            writeNull();
+            return;
+        }
+        writeByte('[');
+        for (int i = 0; i < regions.length; i++) {
+            if (i > 0) writeByte(',');
+            writeByte('{');
+            writeName("regionName", false);
+            writeString(regions[i].getRegionName());
+            writeName("start", true);
+            writeInt(regions[i].getStart());
+            writeName("end", true);
+            writeInt(regions[i].getEnd());
+            writeByte('}');
+        }
+        writeByte(']');
+    }
+
+    private void writeInts(int[] values) throws IOException {
+        if (values == null) {
+            writeNull();
+            return;
+        }
+        writeByte('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) writeByte(',');
+            writeInt(values[i]);
+        }
+        writeByte(']');
+    }
+
+    private void writeFloats(float[] values) throws IOException {
+        if (values == null) {
+            writeNull();
+            return;
+        }
+        writeByte('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) writeByte(',');
+            writeFloat(values[i]);
+        }
+        writeByte(']');
+    }
+
+    private void writeStrings(String[] values) throws IOException {
+        if (values == null) {
+            writeNull();
+            return;
+        }
+        writeByte('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) writeByte(',');
+            writeString(values[i]);
+        }
+        writeByte(']');
+    }
+
+    private void writeName(String name, boolean comma) throws IOException {
+        if (comma) writeByte(',');
+        writeString(name);
+        writeByte(':');
+    }
+
+    private void writeNull() throws IOException {
+        writeByte('n');
+        writeByte('u');
+        writeByte('l');
+        writeByte('l');
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            writeNull();
+            return;
+        }
+        writeByte('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+            } else {
+                writeChar(c);
+            }
+        }
+        writeByte('"');
+    }
+
+    /**
+     * Writes one character of a string value, escaped and UTF-8 encoded.
+     */
+    private void writeChar(char c) throws IOException {
+        if (c == '"' || c == '\\') {
+            writeByte('\\');
+            writeByte(c);
+        } else if (c == '\n') {
+            writeByte('\\');
+            writeByte('n');
+        } else if (c == '\t') {
+            writeByte('\\');
+            writeByte('t');
+        } else if (c == '\r') {
+            writeByte('\\');
+            writeByte('r');
+        } else if (c < 0x20) {
+            writeByte('\\');
+            writeByte('u');
+            writeByte('0');
+            writeByte('0');
+            writeByte(HEX[c >>> 4]);
+            writeByte(HEX[c & 0xF]);
+        } else if (Character.isSurrogate(c)) {
+            writeCodePoint(0xFFFD); // Unpaired surrogate.
+        } else {
+            writeCodePoint(c);
+        }
+    }
+
+    private void writeCodePoint(int codePoint) throws IOException {
+        if (codePoint < 0x80) {
+            writeByte(codePoint);
+        } else if (codePoint < 0x800) {
+            writeByte(0xC0 | codePoint >>> 6);
+            writeByte(0x80 | codePoint & 0x3F);
+        } else if (codePoint < 0x10000) {
+            writeByte(0xE0 | codePoint >>> 12);
+            writeByte(0x80 | codePoint >>> 6 & 0x3F);
+            writeByte(0x80 | codePoint & 0x3F);
+        } else {
+            writeByte(0xF0 | codePoint >>> 18);
+            writeByte(0x80 | codePoint >>> 12 & 0x3F);
+            writeByte(0x80 | codePoint >>> 6 & 0x3F);
+            writeByte(0x80 | codePoint & 0x3F);
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        writeLong(value);
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            // Cannot be negated.
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (position + 20 > buffer.length) drain();
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) digits++;
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position = end;
+    }
+
+    /**
+     * Writes the shortest decimal with up to 9 fraction digits that parses back to value,
+     * keeping one fraction digit for whole numbers like {@link Float#toString(float)}.
+     */
+    private void writeFloat(float value) throws IOException {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            writeNull();
+            return;
+        }
+        float abs = Math.abs(value);
+        if (abs != 0 && (abs < 1e-3f || abs >= 1e7f)) {
+            // Outside the plain decimal range of Float.toString, use its scientific form.
+            writeAscii(Float.toString(value));
+            return;
+        }
+        for (int digits = 1; digits < POWERS_OF_TEN.length; digits++) {
+            long scaled = Math.round(abs * POWERS_OF_TEN[digits]);
+            if ((float) (scaled / POWERS_OF_TEN[digits]) == abs) {
+                if (value < 0 || (value == 0 && 1 / value < 0)) writeByte('-');
+                writeLong(scaled / (long) POWERS_OF_TEN[digits]);
+                writeByte('.');
+                long fraction = scaled % (long) POWERS_OF_TEN[digits];
+                for (int d = digits - 1; d >= 0; d--) {
+                    writeByte((int) ('0' + fraction / (long) POWERS_OF_TEN[d] % 10));
+                }
+                return;
+            }
+        }
+        writeAscii(Float.toString(value));
+    }
+
+    private void writeAscii(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            writeByte(value.charAt(i));
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (position == buffer.length) drain();
+        buffer[position++] = (byte) b;
+    }
+
+    private void drain() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
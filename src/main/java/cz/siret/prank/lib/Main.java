@@ -2,307 +2,262 @@ package cz.siret.prank.lib;
 
 import org.biojava.nbio.structure.Structure;
 import org.biojava.nbio.structure.StructureException;
-import org.biojava.nbio.structure.io.PDBFileReader;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
 
 import cz.siret.prank.lib.utils.BioUtils;
-import cz.siret.prank.lib.utils.Tuple;
 import cz.siret.prank.lib.utils.Tuple2;
-import cz.siret.prank.lib.utils.Utils;
 
 public class Main {
 
+    /**
+     * An input file given on the command line does not exist.
+     */
+    private static final class MissingFileException extends FileNotFoundException {
+        private MissingFileException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Positions of the file arguments of commands.
+     */
+    private static final Map<String, int[]> FILE_ARGUMENTS = new HashMap<>();
+
+    static {
+        FILE_ARGUMENTS.put("pdbtofasta", new int[]{1});
+        FILE_ARGUMENTS.put("pickscoresfromhssp", new int[]{1, 3, 4, 5});
+        FILE_ARGUMENTS.put("pickscores", new int[]{1});
+        FILE_ARGUMENTS.put("getproteinsize", new int[]{1});
+        FILE_ARGUMENTS.put("converthom", new int[]{1});
+        FILE_ARGUMENTS.put("evaluate", new int[]{1, 2});
+        FILE_ARGUMENTS.put("batch", new int[]{1, 3});
+    }
+
     public static void main(String[] args) {
+        int exitCode = run(args, System.out, System.err);
+        if (exitCode != 0) {
+            System.exit(exitCode);
+        }
+    }
+
+    /**
+     * Runs a command like the command line does, printing to the given streams instead of the
+     * standard ones. Used by {@link Daemon} to run commands of its clients.
+     *
+     * @return Exit code of the command
+     */
+    public static int run(String[] args, PrintStream out, PrintStream err) {
+        return run(args, null, out, err);
+    }
+
+    /**
+     * @param workingDir Directory relative file arguments are resolved against, including
+     *                   those of batch jobs, null for the working directory of the process
+     */
+    public static int run(String[] args, File workingDir, PrintStream out, PrintStream err) {
         try {
-            if (args.length == 0) {
-                Path dir = Paths.get("e:/School/MFF/Projects/Prank2Web/Experiments" +
-                        "/joined/");
-                //analyzeConservation(dir, "hssp", ConservationScore.ScoreFormat.JSDFormat);
-                return;
-            }
-            switch (args[0].toLowerCase()) {
-                case "pdbtofasta":
-                    try {
-                        File argFile = new File(args[1]);
-                        if (!argFile.exists()) {
-                            System.err.println("File specified does not exists.");
-                            return;
-                        }
-                        if (argFile.isDirectory()) {
-                            BioUtils.INSTANCE.dirToFastaFiles(argFile).forEach(System.out::println);
-                        } else {
-                            BioUtils.INSTANCE.fileToFastaFiles(argFile).forEach(System.out::println);
-                        }
-                    } catch (StructureException e) {
-                        e.printStackTrace();
+            return runCommand(args, workingDir, out, err);
+        } catch (IOException | StructureException e) {
+            // Failed reads do not change the exit code of the command line.
+            printError(e, err);
+            return 0;
+        } catch (RuntimeException e) {
+            // Like an uncaught exception on the command line.
+            e.printStackTrace(err);
+            return 1;
+        }
+    }
+
+    /**
+     * Like {@link #run(String[], File, PrintStream, PrintStream)}, but passes on the
+     * exceptions of commands, so that callers can tell failed reads from successful runs.
+     */
+    static int runCommand(String[] args, File workingDir, PrintStream out, PrintStream err)
+            throws IOException, StructureException {
+        args = resolveFileArguments(args, workingDir);
+        if (args.length == 0) {
+            return 0;
+        }
+        switch (args[0].toLowerCase()) {
+            case "pdbtofasta":
+                File argFile = new File(args[1]);
+                if (!argFile.exists()) {
+                    throw new MissingFileException("File specified does not exists.");
+                }
+                if (argFile.isDirectory()) {
+                    BioUtils.INSTANCE.dirToFastaFiles(argFile).forEach(out::println);
+                } else {
+                    BioUtils.INSTANCE.fileToFastaFiles(argFile).forEach(out::println);
+                }
+                break;
+            case "pickscoresfromhssp":
+                // Parameters are pdbfile, pdbId, hsspToFasta, msaToConservation, hsspDir,
+                // optionally "stream" to pipe data through the scripts
+                try {
+                    ExternalTools externalTools = new ExternalTools(args[3], args[4], args[5]);
+                    externalTools.setStreaming(args.length > 6
+                            && args[6].equalsIgnoreCase("stream"));
+                    Path pdbFile = Paths.get(args[1]);
+                    Structure protein = BioUtils.INSTANCE.loadPdbFile(pdbFile.toFile());
+                    String baseName = BioUtils.INSTANCE.removePdbExtension(
+                            pdbFile.getFileName().toString()).getItem1();
+                    Path pdbFileParent = pdbFile.toAbsolutePath().getParent();
+                    Map<String, Tuple2<File, File>> scores = externalTools
+                            .getConservationAndMSAsFromHSSPToDir(args[2], protein,
+                                    pdbFileParent, baseName);
+                    if (scores.size() <= 0) {
+                        return 1;
                     }
-                    break;
-                case "pickscoresfromhssp":
-                    // Parameters are pdbfile, pdbId, hsspToFasta, msaToConservation, hsspDir
-                    try {
-                        ExternalTools externalTools = new ExternalTools(args[3], args[4], args[5]);
-                        Path pdbFile = Paths.get(args[1]);
-                        Structure protein = BioUtils.INSTANCE.loadPdbFile(pdbFile.toFile());
-                        Map<String, Tuple2<File, File>> scores = externalTools
-                                .getConsevationAndMSAsFromHSSP(args[2], protein);
-                        String baseName = BioUtils.INSTANCE.removePdbExtension(args[1]).getItem1();
-                        Path pdbFileParent = pdbFile.getParent();
-                        if (scores.size() <= 0) {
-                            System.exit(1);
-                        }
-                        for (Map.Entry<String, Tuple2<File, File>> entry : scores.entrySet()) {
-                            Path dest = pdbFileParent.resolve(baseName.concat(entry.getKey())
-                                    .concat(".fasta"));
-                            Files.copy(Paths.get(
-                                    entry.getValue().getItem1().getAbsolutePath()), dest,
-                                    StandardCopyOption.REPLACE_EXISTING);
-                            Utils.INSTANCE.gzipAndDeleteFile(dest.toFile());
-                            dest = pdbFileParent.resolve(baseName.concat(entry.getKey())
-                                    .concat(".hom"));
-                            Files.copy(Paths.get(
-                                    entry.getValue().getItem2().getAbsolutePath()), dest,
-                                    StandardCopyOption.REPLACE_EXISTING);
-                            Utils.INSTANCE.gzipAndDeleteFile(dest.toFile());
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace(err);
+                    return 1;
+                }
+                break;
+            case "pickscores":
+                File directory = (new File(args[1]));
+                if (directory.exists() && directory.isDirectory()) {
+                    FilenameFilter filter = (File dir, String name) -> {
+                        if (name.endsWith(".pdb")) {
+                            return true;
                         }
-                        // Delete the temp files with MSAs and conservation files.
-                         scores.values().stream().forEach(files -> {
-                             files.getItem1().delete();
-                             files.getItem2().delete();
-                         });
-                    } catch (IOException | InterruptedException e) {
-                        e.printStackTrace();
-                        System.exit(1);
+                        return false;
+                    };
+                    int threads = args.length > 2 ? Integer.parseInt(args[2])
+                            : Runtime.getRuntime().availableProcessors();
+                    if (threads < 1) {
+                        err.println("Number of threads must be at least 1.");
+                        return 1;
                     }
-                    break;
-                case "pickscores":
-                    try {
-                        File directory = (new File(args[1]));
-                        if (directory.exists() && directory.isDirectory()) {
-                            FilenameFilter filter = (File dir, String name) -> {
-                                if (name.endsWith(".pdb")) {
-                                    return true;
-                                }
-                                return false;
-                            };
-                            for (Tuple2<File, String> f : ConservationScore.pickScoresForPDBs(
-                                    directory.listFiles(filter))) {
-                                if (f == null || f.getItem1() == null || f.getItem2() == null) {
-                                    int debug = 5;
-                                }
-                                System.out.printf("%s %s\n", f.getItem1().getName(), f.getItem2());
-                            }
-                        }
-                    } catch (StructureException e) {
-                        e.printStackTrace();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                    ConservationScore.pickScoresForPDBs(directory.listFiles(filter),
+                            threads, f -> out.printf("%s %s\n",
+                                    f.getItem1().getName(), f.getItem2()));
+                }
+                break;
+            case "getproteinsize":
+                out.println(BioUtils.INSTANCE.getProteinSize(new File(args[1])));
+                break;
+            case "converthom":
+                // Parameters are score file or directory, optional format (jsd, concavity)
+                ConservationScore.ScoreFormat format = args.length > 2
+                        && args[2].equalsIgnoreCase("concavity")
+                        ? ConservationScore.ScoreFormat.ConCavityFormat
+                        : ConservationScore.ScoreFormat.JSDFormat;
+                File source = new File(args[1]);
+                File[] textFiles = source.isDirectory()
+                        ? source.listFiles((File dir, String name) -> name.endsWith(".hom")
+                                || name.endsWith(".hom.gz"))
+                        : new File[]{source};
+                for (File textFile : textFiles) {
+                    File binFile = new File(textFile.getAbsoluteFile().getParentFile(),
+                            BinaryScoreFile.binaryName(textFile.getName()));
+                    BinaryScoreFile.convert(textFile, format, binFile);
+                    out.println(binFile.getAbsolutePath());
+                }
+                break;
+            case "evaluate":
+                // Parameters are dataset directory, dataset statistics CSV, optional
+                // format (jsd, concavity) and number of threads
+                evaluate(Paths.get(args[1]), new File(args[2]), args.length > 3
+                                && args[3].equalsIgnoreCase("concavity")
+                                ? ConservationScore.ScoreFormat.ConCavityFormat
+                                : ConservationScore.ScoreFormat.JSDFormat,
+                        args.length > 4 ? Integer.parseInt(args[4])
+                                : Runtime.getRuntime().availableProcessors(), out);
+                break;
+            case "daemon":
+                // Parameters are optional port and number of threads
+                int port = args.length > 1 ? Integer.parseInt(args[1])
+                        : DaemonClient.DEFAULT_PORT;
+                int threads = args.length > 2 ? Integer.parseInt(args[2])
+                        : Runtime.getRuntime().availableProcessors();
+                try (Daemon daemon = new Daemon(port, threads)) {
+                    out.println("Listening on port " + daemon.getPort());
+                    daemon.serve();
+                }
+                break;
+            case "batch":
+                // Parameters are manifest, optional number of threads and result file,
+                // results go to stdout by default
+                Batch batch = new Batch(args.length > 2 ? Integer.parseInt(args[2])
+                        : Runtime.getRuntime().availableProcessors(), workingDir);
+                int failed;
+                if (args.length > 3) {
+                    try (OutputStream results = new BufferedOutputStream(
+                            new FileOutputStream(args[3]))) {
+                        failed = batch.run(new File(args[1]), results);
                     }
-                case "getproteinsize":
-                    System.out.println(BioUtils.INSTANCE.getProteinSize(
-                            BioUtils.INSTANCE.loadPdbFile(new File(args[1]))));
-                    break;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+                } else {
+                    failed = batch.run(new File(args[1]), out);
+                }
+                if (failed > 0) {
+                    err.println(failed + " jobs failed.");
+                    return 1;
+                }
+                break;
+            default:
+                err.println("Unknown command " + args[0]);
+                return 1;
         }
+        return 0;
     }
 
-    private static ConservationScore loadConservationScore(File pdbFile,
-                                                           Function<String, File> scoreFnc,
-                                                           ConservationScore.ScoreFormat format)
-            throws IOException {
-        try (InputStream pdbIn = Utils.INSTANCE.readFile(pdbFile)) {
-            PDBFileReader reader = new PDBFileReader();
-            Structure s = reader.getStructure(pdbIn);
-            return ConservationScore.fromFiles(s, scoreFnc, format);
+    /**
+     * Prints the message of a missing file, the stack trace of other exceptions.
+     */
+    static void printError(Exception e, PrintStream err) {
+        if (e instanceof MissingFileException) {
+            err.println(e.getMessage());
+        } else {
+            e.printStackTrace(err);
         }
     }
 
-    private static Map<String, List<Integer>> loadDatasetStatistics(File datasetStats) throws
-            IOException {
-        Map<String, List<Integer>> result = new HashMap<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(datasetStats))) {
-            String line;
-            boolean first = true;
-            while ((line = br.readLine()) != null) {
-                // Skip the header.
-                if (first) {
-                    first = false;
-                    continue;
-                }
-
-                String[] tokens = line.split(",");
-                String fileName = tokens[0];
-                List<Integer> pocketList = result.get(fileName);
-                if (pocketList == null) { // No value for given key.
-                    pocketList = new ArrayList<>(1);
-                }
-                // Pocket rank is 4th field in the CSV.
-                pocketList.add(Integer.parseInt(tokens[3]));
-                result.put(fileName, pocketList);
+    /**
+     * @return The arguments with relative file arguments resolved against the directory.
+     */
+    static String[] resolveFileArguments(String[] args, File workingDir) {
+        int[] positions = args.length > 0 ? FILE_ARGUMENTS.get(args[0].toLowerCase()) : null;
+        if (workingDir == null || positions == null) return args;
+        String[] result = args.clone();
+        for (int position : positions) {
+            if (position < result.length && !new File(result[position]).isAbsolute()) {
+                result[position] = new File(workingDir, result[position]).getPath();
             }
         }
         return result;
     }
-/*
-    private static void analyzeConservation(Path dir, String origin,
-                                            ConservationScore.ScoreFormat format) throws
-            IOException {
-        Map<String, List<Integer>> datasetStats = loadDatasetStatistics(
-                dir.resolve("ranks_rescored.dca4.csv").toFile());
-        List<Integer> truePocketPositionsConservation = new ArrayList<>();
-        List<Integer> truePocketPositionsPrank = new ArrayList<>();
-        List<Integer> truePocketPositionsCombi = new ArrayList<>();
-        List<Integer> falsePocketPositionsConservation = new ArrayList<>();
-        List<Integer> falsePocketPositionsPrank = new ArrayList<>();
-        List<Integer> falsePocketPositionsCombi = new ArrayList<>();
-        List<Integer> numberOfPockets = new ArrayList<>();
-
-        List<Double> truePocketConservationAvg = new ArrayList<>();
-        List<Double> falsePocketConservationAvg = new ArrayList<>();
-
-
-        List<Double> scores = new ArrayList<>();
-        List<Double> conservationScore = new ArrayList<>();
-        List<Boolean> pocketIsTrue = new ArrayList<>();
-        try (PrintWriter result = new PrintWriter(dir.resolve("results." + origin + ".txt")
-                .toFile())) {
-            try (PrintWriter allRaw = new PrintWriter(dir.resolve("resultsAllRaw." + origin + "" +
-                    ".txt").toFile())) {
-                File[] filesInDir = dir.toFile().listFiles();
-                List<ConservationComparison> comparisons = new ArrayList<>();
-                for (File pdb : filesInDir) {
-                    if (pdb.getName().endsWith(".pdb")) {
-                        String nameBase = pdb.getName().substring(0, pdb.getName().length() - 4);
-                        File indices = dir.resolve(nameBase + ".pdb_binding-residues.txt").toFile();
-
-                        Function<String, File> scoreFnc = format == ConservationScore.ScoreFormat
-                                .ConCavityFormat ?
-                                chainId -> dir.resolve(String.format
-                                        ("%s_%s.scores", nameBase, chainId)).toFile() :
-                                chainId -> dir.resolve(String.format
-                                        ("%s%s.scores", nameBase, chainId)).toFile();
-
-                        File predictions = dir.resolve(String.format("%s.pdb_predictions.csv",
-                                nameBase)).toFile();
-                        try {
-                            ConservationScore score = loadConservationScore(pdb, scoreFnc, format);
-                            ConservationComparison comparison =
-                                    ConservationComparison.fromFiles(pdb, score,
-                                            origin, indices);
-                            List<Pocket> pockets = Pocket.parseCSVPrediction(
-                                    new FileInputStream(predictions),
-                                    datasetStats.get(pdb.getName()),
-                                    score);
-
-                            for (Pocket pocket : pockets) {
-                                scores.add((double) pocket.getScore());
-                                conservationScore.add(pocket.getConservationAvg());
-                                pocketIsTrue.add(pocket.isTruePocket());
-                            }
 
-                            for (int i = 0; i < pockets.size(); i++) {
-                                if (pockets.get(i).isTruePocket()) {
-                                    truePocketPositionsPrank.add(i);
-                                    System.out.printf("prank: %d\n", i);
-                                } else {
-                                    falsePocketPositionsPrank.add(i);
-                                }
-                            }
-
-                            pockets.sort(Comparator.comparing(Pocket::getConservationAvg)
-                                    .reversed());
-                            for (int i = 0; i < pockets.size(); i++) {
-                                if (pockets.get(i).isTruePocket()) {
-                                    truePocketPositionsConservation.add(i);
-                                    System.out.printf("conser: %d\n", i);
-                                    truePocketConservationAvg.add(pockets.get(i)
-                                            .getConservationAvg());
-                                } else {
-                                    falsePocketPositionsConservation.add(i);
-                                    falsePocketConservationAvg.add(pockets.get(i)
-                                            .getConservationAvg());
-                                }
-                            }
-
-                            pockets.sort(Comparator.comparing(Pocket::getCombiningScore).reversed
-                                    ());
-                            for (int i = 0; i < pockets.size(); i++) {
-                                if (pockets.get(i).isTruePocket()) {
-                                    truePocketPositionsCombi.add(i);
-                                    System.out.printf("combi: %d\n", i);
-                                } else {
-                                    falsePocketPositionsCombi.add(i);
-                                }
-                            }
-
-                            numberOfPockets.add(pockets.size());
-
-                            System.out.println(comparison.toString());
-                            result.println(comparison.toString());
-                            comparisons.add(comparison);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-//                ConservationComparison all = ConservationComparison.merge(comparisons, origin);
-                result.println();
-//                result.println(all.toString());
-                double avgNumberOfPockets = numberOfPockets.stream().mapToInt(Integer::intValue)
-                        .average().getAsDouble();
-                System.out.printf("\n\nTrue pocket prank rank avg: %f/%f\n",
-                        truePocketPositionsPrank.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-                System.out.printf("True pocket conservation rank avg: %f/%f\n",
-                        truePocketPositionsConservation.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-                System.out.printf("True pocket combi rank avg: %f/%f\n",
-                        truePocketPositionsCombi.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-                System.out.printf("False pocket prank rank avg: %f/%f\n",
-                        falsePocketPositionsPrank.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-                System.out.printf("False pocket conservation rank avg: %f/%f\n",
-                        falsePocketPositionsConservation.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-                System.out.printf("False pocket combi rank avg: %f/%f\n",
-                        falsePocketPositionsCombi.stream().mapToInt(Integer::intValue)
-                                .average().getAsDouble(), avgNumberOfPockets);
-
-                System.out.printf("\n\nTrue pocket conservation avg: %f\n",
-                        truePocketConservationAvg.stream().mapToDouble(Double::doubleValue)
-                                .average().getAsDouble());
-                System.out.printf("False pocket conservation avg: %f\n",
-                        falsePocketConservationAvg.stream().mapToDouble(Double::doubleValue)
-                                .average().getAsDouble());
-
-//                Function<String, String> trim = s -> s.substring(1, s.length() - 1);
-//                allRaw.println(trim.apply(Arrays.toString(all.getProteinScores())));
-//                allRaw.println(trim.apply(Arrays.toString(all.getNonLigandScores())));
-//                allRaw.println(trim.apply(Arrays.toString(all.getLigandScores())));
-
-                for (int i = 0; i < pocketIsTrue.size(); i++) {
-                    allRaw.printf("%f,%f,%f\n", scores.get(i), conservationScore.get(i),
-                            pocketIsTrue.get(i) ? 1.0 : 0.0);
-                }
-            }
+    /**
+     * Writes results.txt with rank statistics and resultsAllRaw.csv with a row per pocket to
+     * the dataset directory.
+     */
+    private static void evaluate(Path dir, File datasetStats,
+                                 ConservationScore.ScoreFormat format, int threads,
+                                 PrintStream out) throws IOException {
+        DatasetEvaluation evaluation = new DatasetEvaluation(dir, format,
+                DatasetEvaluation.loadDatasetStatistics(datasetStats));
+        evaluation.setThreads(threads);
+        DatasetEvaluation.Statistics statistics;
+        try (Writer raw = Files.newBufferedWriter(dir.resolve("resultsAllRaw.csv"))) {
+            statistics = evaluation.evaluate(raw);
         }
+        Files.write(dir.resolve("results.txt"),
+                statistics.toString().getBytes(StandardCharsets.UTF_8));
+        out.print(statistics);
     }
-    */
 }
@@ -1,13 +1,11 @@
 package cz.siret.prank.lib;
 
-import org.biojava.nbio.structure.Structure;
-
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.UncheckedIOException;
 import java.util.List;
-import java.util.Scanner;
 
 public class Pocket implements Serializable {
     private String name;
@@ -18,8 +16,13 @@ public class Pocket implements Serializable {
     private float centerX;
     private float centerY;
     private float centerZ;
-    private String[] residueIds;
-    private Integer[] surfAtomIds;
+    private volatile String[] residueIds;
+    /**
+     * Space separated residue ids, decoded to residueIds on first access. Decoded before
+     * serialization, so the serialized form only has residueIds.
+     */
+    private transient volatile String residueIdList;
+    private int[] surfAtomIds;
 
     public String getName() {
         return name;
@@ -86,44 +89,55 @@ public class Pocket implements Serializable {
     }
 
     public String[] getResidueIds() {
-        return residueIds;
+        String list = residueIdList;
+        if (list == null) {
+            return residueIds;
+        }
+        // Concurrent callers may decode twice, residueIds is published before the list is
+        // dropped.
+        String[] ids = list.isEmpty() ? new String[0] : list.split(" +");
+        residueIds = ids;
+        residueIdList = null;
+        return ids;
     }
 
     public void setResidueIds(String[] residueIds) {
         this.residueIds = residueIds;
+        this.residueIdList = null;
+    }
+
+    void setResidueIdList(String residueIdList) {
+        this.residueIds = null;
+        this.residueIdList = residueIdList;
     }
 
-    public Integer[] getSurfAtomIds() {
+    public int[] getSurfAtomIds() {
         return surfAtomIds;
     }
 
-    public void setSurfAtomIds(Integer[] surfAtomIds) {
+    public void setSurfAtomIds(int[] surfAtomIds) {
         this.surfAtomIds = surfAtomIds;
     }
 
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getResidueIds();
+        out.defaultWriteObject();
+    }
+
     public static List<Pocket> parseCSVPrediction(InputStream inputStream) {
-        // name,rank,score,connolly_points,surf_atoms,center_x,center_y,center_z,residue_ids,
-        // surf_atom_ids
-        Scanner scanner = new Scanner(inputStream);
-        scanner.nextLine(); // Skip the header line
-        List<Pocket> res = new ArrayList<>();
-        while (scanner.hasNextLine()) {
-            Pocket p = new Pocket();
-            String[] tokens = scanner.nextLine().split(",");
-            p.setName(tokens[0]);
-            p.setRank(Integer.parseInt(tokens[1]));
-            p.setScore(Float.parseFloat(tokens[2]));
-            p.setNumOfConnollyPoints(Integer.parseInt(tokens[3]));
-            p.setNumOfSurfaceAtoms(Integer.parseInt(tokens[4]));
-            p.setCenterX(Float.parseFloat(tokens[5]));
-            p.setCenterY(Float.parseFloat(tokens[6]));
-            p.setCenterZ(Float.parseFloat(tokens[7]));
-            p.setResidueIds(Arrays.stream(tokens[8].split(" ")).toArray(String[]::new));
-            p.setSurfAtomIds(Arrays.stream(tokens[9].split(" "))
-                    .map((s) -> Integer.parseInt(s)).toArray(Integer[]::new));
-            res.add(p);
+        return parseCSVPrediction(inputStream, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param limit Maximum number of pockets to read, the best ranked are first
+     * @see PocketCsvReader
+     */
+    public static List<Pocket> parseCSVPrediction(InputStream inputStream, int limit) {
+        try {
+            return PocketCsvReader.read(inputStream, limit);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return res;
     }
 }
@@ -0,0 +1,250 @@
+package cz.siret.prank.lib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Conservation of predicted pockets: mean, maximum and a quantile of the scores of their
+ * residues, and pockets re-ranked by a combination of their score and conservation.
+ *
+ * The scores of a {@link ConservationScore} are copied once into sorted primitive arrays, so
+ * mapping residue ids to scores needs no hashing or boxing. Instances are immutable and may be
+ * shared between threads.
+ */
+public final class PocketConservation {
+
+    /**
+     * Conservation of one pocket. Residues without a score are left out, all values are 0 if
+     * no residue of the pocket has a score.
+     */
+    public static final class Stats {
+        private final Pocket pocket;
+        private final int residueCount;
+        private final double mean;
+        private final double max;
+        private final double quantile;
+
+        private Stats(Pocket pocket, int residueCount, double mean, double max,
+                      double quantile) {
+            this.pocket = pocket;
+            this.residueCount = residueCount;
+            this.mean = mean;
+            this.max = max;
+            this.quantile = quantile;
+        }
+
+        public Pocket getPocket() {
+            return pocket;
+        }
+
+        /**
+         * @return Number of residues with a score.
+         */
+        public int getResidueCount() {
+            return residueCount;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getQuantile() {
+            return quantile;
+        }
+    }
+
+    public interface Combiner {
+        /**
+         * @return Combined score, higher is better.
+         */
+        double combine(Pocket pocket, Stats conservation);
+    }
+
+    /**
+     * Mean conservation alone, ignoring the pocket score.
+     */
+    public static final Combiner MEAN = (pocket, conservation) -> conservation.getMean();
+
+    /**
+     * Pocket score weighted by the mean conservation of its residues.
+     */
+    public static final Combiner SCORE_TIMES_MEAN =
+            (pocket, conservation) -> pocket.getScore() * conservation.getMean();
+
+    public static final double DEFAULT_QUANTILE = 0.75;
+
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final long[] keys;
+    private final float[] scores;
+    private final double quantile;
+
+    public PocketConservation(ConservationScore conservation) {
+        this(conservation, DEFAULT_QUANTILE);
+    }
+
+    /**
+     * @param quantile Quantile to compute, between 0 and 1
+     */
+    public PocketConservation(ConservationScore conservation, double quantile) {
+        if (!(quantile >= 0 && quantile <= 1)) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+        }
+        long[] keys = new long[conservation.size()];
+        int[] count = new int[1];
+        conservation.forEachScore((key, value) -> keys[count[0]++] = key);
+        Arrays.sort(keys);
+        float[] scores = new float[keys.length];
+        conservation.forEachScore((key, value) ->
+                scores[Arrays.binarySearch(keys, key)] = (float) value);
+        this.keys = keys;
+        this.scores = scores;
+        this.quantile = quantile;
+    }
+
+    /**
+     * @return Dense positions of the pocket residues that have a score, in residue order.
+     * Unparsable residue ids are left out.
+     */
+    public int[] positions(Pocket pocket) {
+        String[] residueIds = pocket.getResidueIds();
+        if (residueIds == null) return new int[0];
+        int[] result = new int[residueIds.length];
+        int count = 0;
+        for (String residueId : residueIds) {
+            long key;
+            try {
+                key = ResidueNumberWrapper.toKey(residueId);
+            } catch (IllegalArgumentException e) {
+                // Skipped like residues without a score.
+                logger.debug("Skipping residue id [{}] of pocket {}: {}", residueId,
+                        pocket.getName(), e.getMessage());
+                continue;
+            }
+            int position = Arrays.binarySearch(keys, key);
+            if (position >= 0) result[count++] = position;
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return Score at a position returned by {@link #positions(Pocket)}.
+     */
+    public float getScore(int position) {
+        return scores[position];
+    }
+
+    /**
+     * @return Conservation of the pockets, in the same order.
+     */
+    public List<Stats> aggregate(List<Pocket> pockets) {
+        // Scores of all pockets laid out one after another, pocket i at offsets[i]..[i + 1].
+        int[] offsets = new int[pockets.size() + 1];
+        float[] values = new float[64];
+        for (int i = 0; i < pockets.size(); i++) {
+            int[] positions = positions(pockets.get(i));
+            int offset = offsets[i];
+            if (offset + positions.length > values.length) {
+                values = Arrays.copyOf(values, Math.max(values.length * 2,
+                        offset + positions.length));
+            }
+            for (int position : positions) {
+                values[offset++] = scores[position];
+            }
+            offsets[i + 1] = offset;
+        }
+
+        List<Stats> result = new ArrayList<>(pockets.size());
+        for (int i = 0; i < pockets.size(); i++) {
+            int from = offsets[i];
+            int to = offsets[i + 1];
+            int n = to - from;
+            if (n == 0) {
+                result.add(new Stats(pockets.get(i), 0, 0, 0, 0));
+                continue;
+            }
+            Arrays.sort(values, from, to);
+            double sum = 0;
+            for (int j = from; j < to; j++) {
+                sum += values[j];
+            }
+            // Linear interpolation between the closest ranks.
+            double rank = quantile * (n - 1);
+            int lower = (int) rank;
+            double q = values[from + lower];
+            if (lower + 1 < n) {
+                q += (rank - lower) * (values[from + lower + 1] - q);
+            }
+            result.add(new Stats(pockets.get(i), n, sum / n, values[to - 1], q));
+        }
+        return result;
+    }
+
+    /**
+     * @return Conservation of the pockets ordered by the combined score, best first. Pockets
+     * with equal combined scores keep their order.
+     */
+    public List<Stats> rerank(List<Pocket> pockets, Combiner combiner) {
+        return rank(aggregate(pockets), combiner);
+    }
+
+    /**
+     * @param stats Result of {@link #aggregate(List)}
+     * @return The same stats ordered by the combined score, best first
+     */
+    public static List<Stats> rank(List<Stats> stats, Combiner combiner) {
+        double[] combined = new double[stats.size()];
+        int[] order = new int[stats.size()];
+        for (int i = 0; i < combined.length; i++) {
+            combined[i] = combiner.combine(stats.get(i).getPocket(), stats.get(i));
+            order[i] = i;
+        }
+        sortDescending(order, new int[order.length], 0, order.length, combined);
+        List<Stats> result = new ArrayList<>(order.length);
+        for (int i : order) {
+            result.add(stats.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Stable merge sort of indices by their values, highest first.
+     */
+    private static void sortDescending(int[] indices, int[] buffer, int from, int to,
+                                       double[] values) {
+        if (to - from < 2) return;
+        int middle = (from + to) >>> 1;
+        sortDescending(indices, buffer, from, middle, values);
+        sortDescending(indices, buffer, middle, to, values);
+        System.arraycopy(indices, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right == to || (left < middle
+                    && Double.compare(values[buffer[left]], values[buffer[right]]) >= 0)) {
+                indices[i] = buffer[left++];
+            } else {
+                indices[i] = buffer[right++];
+            }
+        }
+    }
+
+    /**
+     * @return The pockets ordered by the combined score, best first.
+     */
+    public List<Pocket> rerankPockets(List<Pocket> pockets, Combiner combiner) {
+        List<Pocket> result = new ArrayList<>(pockets.size());
+        for (Stats stats : rerank(pockets, combiner)) {
+            result.add(stats.getPocket());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,221 @@
+package cz.siret.prank.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming reader of P2Rank pocket predictions (the _predictions.csv files).
+ *
+ * Columns: name, rank, score, connolly_points, surf_atoms, center_x, center_y, center_z,
+ * residue_ids, surf_atom_ids. The first line is a header. Blanks around fields are ignored.
+ * Residue ids are decoded only when {@link Pocket#getResidueIds()} is first called. Pockets
+ * are listed by rank, so reading can stop after the top ranked ones.
+ */
+public final class PocketCsvReader {
+
+    public interface Visitor {
+        /**
+         * @return false to stop reading
+         */
+        boolean visit(Pocket pocket);
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int FIELDS = 10;
+    private static final int MAX_FAST_MANTISSA = 1 << 24;
+    private static final double[] POWERS_OF_TEN = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8,
+            1e9, 1e10};
+
+    private byte[] line = new byte[1024];
+    private int lineLength;
+    private int lineNumber;
+    private final int[] fieldStarts = new int[FIELDS];
+    private final int[] fieldEnds = new int[FIELDS];
+    private int[] atomIds = new int[256];
+
+    private PocketCsvReader() {
+    }
+
+    public static List<Pocket> read(InputStream in) throws IOException {
+        return read(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param limit Maximum number of pockets to read
+     * @return The first (best ranked) pockets
+     */
+    public static List<Pocket> read(InputStream in, int limit) throws IOException {
+        List<Pocket> result = new ArrayList<>(Math.min(limit, 64));
+        if (limit <= 0) return result;
+        read(in, pocket -> {
+            result.add(pocket);
+            return result.size() < limit;
+        });
+        return result;
+    }
+
+    public static void read(InputStream in, Visitor visitor) throws IOException {
+        new PocketCsvReader().readAll(in, visitor);
+    }
+
+    private void readAll(InputStream in, Visitor visitor) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                byte b = buffer[i];
+                if (b != '\n') {
+                    if (lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+                    line[lineLength++] = b;
+                } else if (!processLine(visitor)) {
+                    return;
+                }
+            }
+        }
+        if (lineLength > 0) processLine(visitor);
+    }
+
+    /**
+     * @return false to stop reading
+     */
+    private boolean processLine(Visitor visitor) throws IOException {
+        lineNumber++;
+        int length = lineLength;
+        lineLength = 0;
+        if (length > 0 && line[length - 1] == '\r') length--;
+        // Skip the header and empty lines.
+        if (lineNumber == 1 || isBlank(0, length)) return true;
+
+        int field = 0;
+        fieldStarts[0] = 0;
+        for (int i = 0; i < length && field < FIELDS - 1; i++) {
+            if (line[i] == ',') {
+                fieldEnds[field++] = i;
+                fieldStarts[field] = i + 1;
+            }
+        }
+        if (field != FIELDS - 1) {
+            throw malformed("expected " + FIELDS + " fields");
+        }
+        fieldEnds[field] = length;
+        for (int f = 0; f < FIELDS; f++) {
+            while (fieldStarts[f] < fieldEnds[f] && isBlank(line[fieldStarts[f]])) {
+                fieldStarts[f]++;
+            }
+            while (fieldEnds[f] > fieldStarts[f] && isBlank(line[fieldEnds[f] - 1])) {
+                fieldEnds[f]--;
+            }
+        }
+
+        Pocket pocket = new Pocket();
+        pocket.setName(string(0));
+        pocket.setRank(parseInt(fieldStarts[1], fieldEnds[1]));
+        pocket.setScore(parseFloat(2));
+        pocket.setNumOfConnollyPoints(parseInt(fieldStarts[3], fieldEnds[3]));
+        pocket.setNumOfSurfaceAtoms(parseInt(fieldStarts[4], fieldEnds[4]));
+        pocket.setCenterX(parseFloat(5));
+        pocket.setCenterY(parseFloat(6));
+        pocket.setCenterZ(parseFloat(7));
+        pocket.setResidueIdList(string(8));
+        pocket.setSurfAtomIds(parseInts(9));
+        return visitor.visit(pocket);
+    }
+
+    private String string(int field) {
+        return new String(line, fieldStarts[field], fieldEnds[field] - fieldStarts[field],
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses space separated ints.
+     */
+    private int[] parseInts(int field) throws IOException {
+        int count = 0;
+        int i = fieldStarts[field];
+        int end = fieldEnds[field];
+        while (i < end) {
+            int start = i;
+            while (i < end && line[i] != ' ') i++;
+            if (count == atomIds.length) atomIds = Arrays.copyOf(atomIds, count * 2);
+            atomIds[count++] = parseInt(start, i);
+            while (i < end && line[i] == ' ') i++;
+        }
+        return Arrays.copyOf(atomIds, count);
+    }
+
+    private int parseInt(int start, int end) throws IOException {
+        int i = start;
+        boolean negative = i < end && line[i] == '-';
+        if (negative || (i < end && line[i] == '+')) i++;
+        if (i == end) throw malformed("expected an integer");
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) throw malformed("expected an integer");
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) throw malformed("integer out of range");
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) throw malformed("integer out of range");
+        return (int) value;
+    }
+
+    /**
+     * Plain decimals with up to 7 significant digits are converted without creating a string,
+     * dividing the float exact mantissa by an exact power of ten rounds correctly even through
+     * double. Anything else falls back to {@link Float#parseFloat(String)}.
+     */
+    private float parseFloat(int field) throws IOException {
+        int start = fieldStarts[field];
+        int end = fieldEnds[field];
+        int i = start;
+        boolean negative = i < end && line[i] == '-';
+        if (negative || (i < end && line[i] == '+')) i++;
+        long mantissa = 0;
+        int fractionDigits = -1;
+        boolean digits = false;
+        for (; i < end; i++) {
+            byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits = true;
+                if (fractionDigits >= 0) fractionDigits++;
+                if (mantissa >= MAX_FAST_MANTISSA) break;
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        if (i == end && digits && fractionDigits < POWERS_OF_TEN.length) {
+            double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits]
+                    : mantissa;
+            return (float) (negative ? -value : value);
+        }
+        try {
+            return Float.parseFloat(string(field));
+        } catch (NumberFormatException e) {
+            throw malformed("expected a number");
+        }
+    }
+
+    private boolean isBlank(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isBlank(line[i])) return false;
+        }
+        return true;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private IOException malformed(String reason) {
+        return new IOException("Malformed pocket prediction on line " + lineNumber + ": "
+                + reason);
+    }
+}
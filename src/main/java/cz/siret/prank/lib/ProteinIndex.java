@@ -0,0 +1,158 @@
+package cz.siret.prank.lib;
+
+import org.biojava.nbio.structure.Chain;
+import org.biojava.nbio.structure.Group;
+import org.biojava.nbio.structure.GroupType;
+import org.biojava.nbio.structure.Structure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cz.siret.prank.lib.utils.ResidueAlphabet;
+
+/**
+ * Immutable view of the protein chains of a structure, built once so that the amino acid
+ * groups are not filtered again by every consumer.
+ *
+ * Chains without amino acids are left out. Chain ids are normalized, blank ids become "A".
+ * Arrays returned by the getters are shared and must not be modified.
+ */
+public final class ProteinIndex {
+
+    /**
+     * Amino acid groups of one chain with their residue codes and keys.
+     */
+    public static final class ProteinChain {
+        private final String id;
+        private final Chain chain;
+        private final List<Group> groups;
+        private final byte[] codes;
+        private final long[] residueKeys;
+        private final String firstIdenticalId;
+
+        private ProteinChain(String id, Chain chain, Group[] groups, String sequenceKey,
+                             Map<String, String> firstBySequence) {
+            this.id = id;
+            this.chain = chain;
+            this.groups = Collections.unmodifiableList(Arrays.asList(groups));
+            this.codes = new byte[groups.length];
+            this.residueKeys = new long[groups.length];
+            for (int i = 0; i < groups.length; i++) {
+                codes[i] = ResidueAlphabet.INSTANCE.encode(groups[i]);
+                residueKeys[i] = ResidueNumberWrapper.toKey(groups[i].getResidueNumber());
+            }
+            String first = firstBySequence.putIfAbsent(sequenceKey, id);
+            this.firstIdenticalId = first != null ? first : id;
+        }
+
+        /**
+         * @return Normalized chain id, "A" for blank ids.
+         */
+        public String getId() {
+            return id;
+        }
+
+        public Chain getChain() {
+            return chain;
+        }
+
+        public List<Group> getGroups() {
+            return groups;
+        }
+
+        public int size() {
+            return codes.length;
+        }
+
+        /**
+         * @return Residue codes, see {@link ResidueAlphabet}.
+         */
+        public byte[] getCodes() {
+            return codes;
+        }
+
+        /**
+         * @return Residue keys, see {@link ResidueNumberWrapper#toKey()}.
+         */
+        public long[] getResidueKeys() {
+            return residueKeys;
+        }
+
+        /**
+         * @return Id of the first chain with the same residue names in the same order, the id
+         * of this chain if there is none before it.
+         */
+        public String getFirstIdenticalId() {
+            return firstIdenticalId;
+        }
+    }
+
+    private final Structure structure;
+    private final List<ProteinChain> chains;
+    private final Map<String, ProteinChain> chainsById;
+    private final int residueCount;
+
+    private ProteinIndex(Structure structure) {
+        List<ProteinChain> chains = new ArrayList<>();
+        Map<String, ProteinChain> chainsById = new LinkedHashMap<>();
+        Map<String, String> firstBySequence = new HashMap<>();
+        int residueCount = 0;
+        for (Chain chain : structure.getChains()) {
+            List<Group> groups = chain.getAtomGroups(GroupType.AMINOACID);
+            // Skip non-protein chains.
+            if (groups.isEmpty()) continue;
+            String id = chain.getChainID().trim().isEmpty() ? "A" : chain.getChainID();
+            StringBuilder sequenceKey = new StringBuilder(groups.size() * 4);
+            for (Group group : groups) {
+                sequenceKey.append(group.getPDBName()).append(' ');
+            }
+            ProteinChain proteinChain = new ProteinChain(id, chain,
+                    groups.toArray(new Group[0]), sequenceKey.toString(), firstBySequence);
+            chains.add(proteinChain);
+            chainsById.putIfAbsent(id, proteinChain);
+            residueCount += proteinChain.size();
+        }
+        this.structure = structure;
+        this.chains = Collections.unmodifiableList(chains);
+        this.chainsById = chainsById;
+        this.residueCount = residueCount;
+    }
+
+    public static ProteinIndex of(Structure structure) {
+        return new ProteinIndex(structure);
+    }
+
+    public Structure getStructure() {
+        return structure;
+    }
+
+    /**
+     * @return Protein chains in structure order.
+     */
+    public List<ProteinChain> getChains() {
+        return chains;
+    }
+
+    /**
+     * @return Chain with the given normalized id, null if there is no such protein chain.
+     */
+    public ProteinChain getChain(String id) {
+        return chainsById.get(id);
+    }
+
+    /**
+     * @return Number of amino acids in all chains.
+     */
+    public int getResidueCount() {
+        return residueCount;
+    }
+
+    public boolean isEmpty() {
+        return chains.isEmpty();
+    }
+}
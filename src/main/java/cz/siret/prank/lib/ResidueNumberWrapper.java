@@ -3,6 +3,9 @@ package cz.siret.prank.lib;
 import org.biojava.nbio.structure.ResidueNumber;
 
 public class ResidueNumberWrapper {
+    private static final int CHAIN_SHIFT = 40;
+    private static final long HASHED_CHAIN = 1L << 23;
+
     private ResidueNumber resNum;
 
     public ResidueNumberWrapper(ResidueNumber resNum) {
@@ -39,6 +42,105 @@ public class ResidueNumberWrapper {
         return true;
     }
 
+    /**
+     * Packs the chain name, sequence number and insertion code into a single long.
+     *
+     * The sequence number takes the low 32 bits, the insertion code the next 8 bits and the
+     * chain the top 24 bits. Blank chains and chain names of up to three ASCII characters are
+     * stored exactly, longer names are hashed.
+     */
+    public static long toKey(ResidueNumber resNum) {
+        long seqNum = resNum.getSeqNum() == null ? 0 : resNum.getSeqNum();
+        Character insCode = resNum.getInsCode();
+        long ins = insCode == null ? 0 : insCode & 0xFF;
+        return chainBits(resNum.getChainName()) << CHAIN_SHIFT | ins << 32
+                | (seqNum & 0xFFFFFFFFL);
+    }
+
+    public long toKey() {
+        return toKey(resNum);
+    }
+
+    /**
+     * Inverse of {@link #toKey(ResidueNumber)}. Hashed chain names are not recoverable and
+     * come back as null.
+     */
+    public static ResidueNumber fromKey(long key) {
+        int seqNum = (int) key;
+        char ins = (char) ((key >>> 32) & 0xFF);
+        long chain = key >>> CHAIN_SHIFT;
+        String chainName = null;
+        if ((chain & HASHED_CHAIN) == 0) {
+            StringBuilder name = new StringBuilder(3);
+            for (int shift = 14; shift >= 0; shift -= 7) {
+                char c = (char) ((chain >>> shift) & 0x7F);
+                if (c != 0) name.append(c);
+            }
+            chainName = name.toString();
+        }
+        return new ResidueNumber(chainName, seqNum, ins == 0 ? null : ins);
+    }
+
+    /**
+     * Key of a residue id as in P2Rank predictions: chain name, underscore, sequence number
+     * and an optional insertion code, e.g. "A_42" or "A_42B". Same as the key of the
+     * corresponding {@link ResidueNumber}.
+     *
+     * @throws IllegalArgumentException if the id is malformed
+     */
+    public static long toKey(String residueId) {
+        int separator = residueId.lastIndexOf('_');
+        int end = residueId.length();
+        long ins = 0;
+        if (end > separator + 1 && !Character.isDigit(residueId.charAt(end - 1))) {
+            ins = residueId.charAt(--end) & 0xFF;
+        }
+        int start = separator + 1;
+        boolean negative = start < end && residueId.charAt(start) == '-';
+        if (negative) start++;
+        if (separator < 0 || start == end || end - start > 10) {
+            throw new IllegalArgumentException("Malformed residue id: " + residueId);
+        }
+        long seqNum = 0;
+        for (int i = start; i < end; i++) {
+            char c = residueId.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Malformed residue id: " + residueId);
+            }
+            seqNum = seqNum * 10 + (c - '0');
+        }
+        if (negative) seqNum = -seqNum;
+        return chainBits(residueId, separator) << CHAIN_SHIFT | ins << 32
+                | (seqNum & 0xFFFFFFFFL);
+    }
+
+    private static long chainBits(String chainName) {
+        return chainName == null ? 0 : chainBits(chainName, chainName.length());
+    }
+
+    /**
+     * Bits of the chain name formed by the first length characters of the string.
+     */
+    private static long chainBits(String name, int length) {
+        boolean blank = true;
+        for (int i = 0; i < length && blank; i++) {
+            blank = name.charAt(i) <= ' ';
+        }
+        if (blank) return 0;
+        if (length <= 3) {
+            long bits = 0;
+            boolean ascii = true;
+            for (int i = 0; i < length; i++) {
+                char c = name.charAt(i);
+                ascii &= c < 128;
+                bits = bits << 7 | (c & 0x7F);
+            }
+            if (ascii) return bits;
+        }
+        String chainName = length == name.length() ? name : name.substring(0, length);
+        return HASHED_CHAIN | (chainName.hashCode() & (HASHED_CHAIN - 1));
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
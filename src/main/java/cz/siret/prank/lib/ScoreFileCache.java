@@ -0,0 +1,172 @@
+package cz.siret.prank.lib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * LRU cache of parsed score files, bounded by an estimate of the retained bytes.
+ *
+ * Entries are keyed by absolute path, modification time, size and format, so a file that
+ * changes on disk is parsed again. Concurrent requests for the same file wait for a single
+ * parse.
+ */
+public class ScoreFileCache {
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    public interface Loader {
+        ChainScores load(File scoreFile, ConservationScore.ScoreFormat format)
+                throws IOException;
+    }
+
+    private static final class Key {
+        private final String path;
+        private final long lastModified;
+        private final long length;
+        private final ConservationScore.ScoreFormat format;
+
+        private Key(File file, ConservationScore.ScoreFormat format) {
+            this.path = file.getAbsolutePath();
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return lastModified == key.lastModified && length == key.length
+                    && path.equals(key.path) && format == key.format;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, lastModified, length, format);
+        }
+    }
+
+    private static final class Pending {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private ChainScores result;
+        private IOException error;
+    }
+
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final LinkedHashMap<Key, ChainScores> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, Pending> pending = new HashMap<>();
+    private long maxBytes;
+    private long usedBytes;
+
+    public ScoreFileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public ChainScores get(File scoreFile, ConservationScore.ScoreFormat format, Loader loader)
+            throws IOException {
+        Key key = new Key(scoreFile, format);
+        Pending own;
+        Pending other;
+        synchronized (this) {
+            ChainScores cached = entries.get(key);
+            if (cached != null) return cached;
+            other = pending.get(key);
+            if (other == null) {
+                own = new Pending();
+                pending.put(key, own);
+            } else {
+                own = null;
+            }
+        }
+        if (other != null) {
+            return await(other);
+        }
+        try {
+            own.result = loader.load(scoreFile, format);
+        } catch (IOException | RuntimeException e) {
+            own.error = e instanceof IOException ? (IOException) e : new IOException(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                pending.remove(key);
+                if (own.result != null) {
+                    put(key, own.result);
+                }
+            }
+            own.done.countDown();
+        }
+        return own.result;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    private ChainScores await(Pending other) throws IOException {
+        try {
+            other.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a score file.", e);
+        }
+        if (other.error != null) {
+            throw other.error;
+        }
+        return other.result;
+    }
+
+    private void put(Key key, ChainScores scores) {
+        long bytes = estimateBytes(scores);
+        if (bytes > maxBytes) {
+            logger.debug("Score file too large to cache: {}", key.path);
+            return;
+        }
+        ChainScores previous = entries.put(key, scores);
+        if (previous != null) {
+            usedBytes -= estimateBytes(previous);
+        }
+        usedBytes += bytes;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<ChainScores> it = entries.values().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            usedBytes -= estimateBytes(it.next());
+            it.remove();
+        }
+    }
+
+    private static long estimateBytes(ChainScores scores) {
+        // Three arrays with headers, the columns and the entry itself.
+        return 3 * 16 + scores.size() * (1L + 8 + 4) + 128;
+    }
+}
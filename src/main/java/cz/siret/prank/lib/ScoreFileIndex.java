@@ -0,0 +1,113 @@
+package cz.siret.prank.lib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Conservation score files ({@code .hom.gz} and {@link BinaryScoreFile} {@code .hom.bin}) of
+ * one directory, listed once and sorted by name, so that the score files of a PDB file can be
+ * looked up without touching the filesystem again. Where both forms of a score file exist,
+ * the binary one is used.
+ */
+public class ScoreFileIndex {
+    public static final String SCORE_FILE_SUFFIX = ".hom.gz";
+
+    private final File dir;
+    /**
+     * Sorted file names, null until the directory is listed.
+     */
+    private volatile String[] names;
+
+    private ScoreFileIndex(File dir, String[] names) {
+        this.dir = dir;
+        this.names = names;
+    }
+
+    /**
+     * Lists the directory. An unreadable directory gives an empty index.
+     */
+    public static ScoreFileIndex of(File dir) {
+        return new ScoreFileIndex(dir, list(dir));
+    }
+
+    /**
+     * Index that lists the directory only once {@link #candidates(String)} or
+     * {@link #size()} needs it, {@link #contains(String)} checks single files until then.
+     */
+    public static ScoreFileIndex lazy(File dir) {
+        return new ScoreFileIndex(dir, null);
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public int size() {
+        return names().length;
+    }
+
+    /**
+     * @param name Score file name without the suffix, e.g. 1abcA.pdb
+     * @return The binary score file if present, else the text one, null if there is none.
+     */
+    public File scoreFile(String name) {
+        if (contains(name + BinaryScoreFile.SUFFIX)) {
+            return new File(dir, name + BinaryScoreFile.SUFFIX);
+        }
+        if (contains(name + SCORE_FILE_SUFFIX)) {
+            return new File(dir, name + SCORE_FILE_SUFFIX);
+        }
+        return null;
+    }
+
+    public boolean contains(String fileName) {
+        String[] listed = names;
+        if (listed == null) {
+            return new File(dir, fileName).isFile();
+        }
+        return Arrays.binarySearch(listed, fileName) >= 0;
+    }
+
+    /**
+     * @return Score files whose name starts with the given base name, text files are left out
+     * where the binary file exists.
+     */
+    public List<File> candidates(String baseName) {
+        String[] listed = names();
+        List<File> result = new ArrayList<>();
+        int i = Arrays.binarySearch(listed, baseName);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < listed.length && listed[i].startsWith(baseName); i++) {
+            if (listed[i].endsWith(SCORE_FILE_SUFFIX) && Arrays.binarySearch(listed,
+                    BinaryScoreFile.binaryName(listed[i])) >= 0) {
+                continue;
+            }
+            result.add(new File(dir, listed[i]));
+        }
+        return result;
+    }
+
+    private String[] names() {
+        String[] listed = names;
+        if (listed == null) {
+            // Concurrent callers may list the directory twice, both get the same result.
+            listed = list(dir);
+            names = listed;
+        }
+        return listed;
+    }
+
+    private static String[] list(File dir) {
+        String[] names = dir.list((File d, String name) -> name.endsWith(SCORE_FILE_SUFFIX)
+                || name.endsWith(BinaryScoreFile.SUFFIX));
+        if (names == null) {
+            names = new String[0];
+        }
+        Arrays.sort(names);
+        return names;
+    }
+}
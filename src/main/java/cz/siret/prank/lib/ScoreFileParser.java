@@ -0,0 +1,225 @@
+package cz.siret.prank.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import cz.siret.prank.lib.utils.ResidueAlphabet;
+
+/**
+ * Streaming parser of tab separated score files (JSD and ConCavity formats).
+ *
+ * Bytes are tokenized in place and written straight into the columns of a
+ * {@link ChainScores}, no line or field Strings are created. Empty lines and lines starting
+ * with '#' are skipped, fields are trimmed, negative scores are clamped to zero and gap
+ * residues are left out.
+ */
+public final class ScoreFileParser {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_FIELDS = 3;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final InputStream in;
+    private final ConservationScore.ScoreFormat format;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    // Current line, copied out of the buffer when it spans a refill.
+    private byte[] line = new byte[256];
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+
+    private byte[] codes = new byte[512];
+    private double[] scores = new double[512];
+    private int[] indices = new int[512];
+    private int size;
+
+    private ScoreFileParser(InputStream in, ConservationScore.ScoreFormat format) {
+        this.in = in;
+        this.format = format;
+    }
+
+    /**
+     * Parses the whole stream. The stream is not closed.
+     *
+     * @throws NumberFormatException if a line does not match the format
+     */
+    public static ChainScores parse(InputStream in, ConservationScore.ScoreFormat format)
+            throws IOException {
+        return new ScoreFileParser(in, format).parse();
+    }
+
+    private ChainScores parse() throws IOException {
+        int length;
+        while ((length = readLine()) >= 0) {
+            parseLine(length);
+        }
+        return new ChainScores(Arrays.copyOf(codes, size), Arrays.copyOf(scores, size),
+                Arrays.copyOf(indices, size));
+    }
+
+    /**
+     * Reads the next line into {@link #line}, without the line terminator.
+     *
+     * @return Length of the line, -1 at the end of the stream.
+     */
+    private int readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position >= limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return length > 0 ? length : -1;
+                }
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '\n' && buffer[position] != '\r') {
+                position++;
+            }
+            int chunk = position - start;
+            if (length + chunk > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + chunk));
+            }
+            System.arraycopy(buffer, start, line, length, chunk);
+            length += chunk;
+            if (position < limit) {
+                // Line terminator found; \r\n counts as empty line that is skipped anyway.
+                position++;
+                return length;
+            }
+        }
+    }
+
+    private void parseLine(int length) {
+        int fields = 0;
+        int start = 0;
+        for (int i = 0; i <= length && fields < MAX_FIELDS; i++) {
+            if (i == length || line[i] == '\t') {
+                int from = start;
+                int to = i;
+                while (from < to && isBlank(line[from])) from++;
+                while (to > from && isBlank(line[to - 1])) to--;
+                fieldStart[fields] = from;
+                fieldEnd[fields] = to;
+                fields++;
+                start = i + 1;
+            }
+        }
+        if (fields == 1 && fieldStart[0] == fieldEnd[0]) return; // Empty line.
+        if (line[fieldStart[0]] == '#') return; // Comment.
+        if (fields < MAX_FIELDS) {
+            throw new NumberFormatException("Expected " + MAX_FIELDS + " fields, got: "
+                    + new String(line, 0, length, StandardCharsets.US_ASCII));
+        }
+
+        int index;
+        double score;
+        byte code;
+        switch (format) {
+            case ConCavityFormat:
+                index = parseInt(0);
+                code = letter(1);
+                score = parseDouble(2);
+                break;
+            case JSDFormat:
+                index = parseInt(0);
+                score = parseDouble(1);
+                code = letter(2);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a text score format: " + format);
+        }
+        if (code == ResidueAlphabet.GAP) return;
+        if (size == codes.length) {
+            codes = Arrays.copyOf(codes, size * 2);
+            scores = Arrays.copyOf(scores, size * 2);
+            indices = Arrays.copyOf(indices, size * 2);
+        }
+        codes[size] = code;
+        scores[size] = score < 0 ? 0 : score;
+        indices[size] = index;
+        size++;
+    }
+
+    private byte letter(int field) {
+        if (fieldStart[field] == fieldEnd[field]) return ResidueAlphabet.UNKNOWN;
+        return ResidueAlphabet.INSTANCE.encode((char) (line[fieldStart[field]] & 0xFF));
+    }
+
+    private int parseInt(int field) {
+        int i = fieldStart[field];
+        int end = fieldEnd[field];
+        boolean negative = false;
+        if (i < end && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 9) return Integer.parseInt(fieldString(field));
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid index: " + fieldString(field));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Plain decimals with up to 18 significant digits and exponents within the exactly
+     * representable powers of ten are computed directly, which rounds the same as
+     * {@link Double#parseDouble(String)}. Anything else falls back to it.
+     */
+    private double parseDouble(int field) {
+        int i = fieldStart[field];
+        int end = fieldEnd[field];
+        boolean negative = false;
+        if (i < end && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean dot = false;
+        boolean any = false;
+        for (; i < end; i++) {
+            byte c = line[i];
+            if (c >= '0' && c <= '9') {
+                any = true;
+                if (mantissa == 0 && c == '0') {
+                    if (dot) fractionDigits++;
+                    continue;
+                }
+                if (++digits > 18) return Double.parseDouble(fieldString(field));
+                mantissa = mantissa * 10 + (c - '0');
+                if (dot) fractionDigits++;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                // Exponents, NaN, Infinity and malformed input.
+                return Double.parseDouble(fieldString(field));
+            }
+        }
+        if (!any || fractionDigits >= POWERS_OF_TEN.length || mantissa >= (1L << 53)) {
+            return Double.parseDouble(fieldString(field));
+        }
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private String fieldString(int field) {
+        return new String(line, fieldStart[field], fieldEnd[field] - fieldStart[field],
+                StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isBlank(byte c) {
+        return c == ' ' || c == '\t';
+    }
+}
@@ -1,17 +1,44 @@
 package cz.siret.prank.lib;
 
-import org.biojava.nbio.structure.Chain;
 import org.biojava.nbio.structure.Group;
-import org.biojava.nbio.structure.GroupType;
+import org.biojava.nbio.structure.ResidueNumber;
 import org.biojava.nbio.structure.Structure;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 
+import cz.siret.prank.lib.utils.ResidueAlphabet;
+
+/**
+ * Residue sequence of the protein chains of a structure with conservation scores, chain
+ * regions and binding sites.
+ *
+ * Residues are stored column-wise: ASCII letters, residue numbers, sparse insertion codes
+ * and float scores. The String based getters are views derived on every call, see
+ * {@link SequenceCodec} for the binary form. Java serialization keeps the form of the String
+ * based getters.
+ */
 public class Sequence implements Serializable {
+    private static final long serialVersionUID = -7629384046679367220L;
+
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("indices", String[].class),
+            new ObjectStreamField("seq", String[].class),
+            new ObjectStreamField("scores", double[].class),
+            new ObjectStreamField("regions", Region[].class),
+            new ObjectStreamField("bindingSites", int[].class)
+    };
+
     public static class Region implements Serializable {
+        private static final long serialVersionUID = -5550144798956131566L;
+
         public Region(String regionName, int start, int end) {
             this.regionName = regionName;
             this.start = start;
@@ -45,34 +72,206 @@ public class Sequence implements Serializable {
         }
     }
 
-    private String[] indices;
-    private String[] seq;
-    private double[] scores;
+    /**
+     * Residue letters (ASCII).
+     */
+    private transient byte[] residues;
+    private transient int[] seqNums;
+    /**
+     * Insertion codes, only for the residues that have one: ascending residue positions and
+     * their codes.
+     */
+    private transient int[] insCodePositions;
+    private transient byte[] insCodes;
+    private float[] scores;
     private Region[] regions;
     private int[] bindingSites;
 
+    private static final String[] LETTERS = new String[128];
+
+    public Sequence() {
+    }
+
+    Sequence(byte[] residues, int[] seqNums, int[] insCodePositions, byte[] insCodes,
+             float[] scores, Region[] regions, int[] bindingSites) {
+        if (residues.length != seqNums.length
+                || (scores.length != 0 && scores.length != residues.length)
+                || insCodePositions.length != insCodes.length) {
+            throw new IllegalArgumentException("Sequence columns differ in length.");
+        }
+        this.residues = residues;
+        this.seqNums = seqNums;
+        this.insCodePositions = insCodePositions;
+        this.insCodes = insCodes;
+        this.scores = scores;
+        this.regions = regions;
+        this.bindingSites = bindingSites;
+    }
+
+    static {
+        for (int i = 0; i < LETTERS.length; i++) {
+            LETTERS[i] = String.valueOf((char) i);
+        }
+    }
+
+    /**
+     * @return Residue letters, one string per residue.
+     */
     public String[] getSeq() {
-        return seq;
+        if (residues == null) return null;
+        String[] result = new String[residues.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = LETTERS[residues[i] & 0x7F];
+        }
+        return result;
     }
 
+    /**
+     * Only the first character of each string is kept.
+     */
     public void setSeq(String[] seq) {
-        this.seq = seq;
+        if (seq == null) {
+            this.residues = null;
+            return;
+        }
+        byte[] residues = new byte[seq.length];
+        for (int i = 0; i < residues.length; i++) {
+            char c = seq[i] == null || seq[i].isEmpty() ? '?' : seq[i].charAt(0);
+            residues[i] = (byte) (c < 128 ? c : '?');
+        }
+        checkLength(residues.length, seqNums != null ? seqNums.length : -1, scoreCount());
+        this.residues = residues;
+    }
+
+    /**
+     * @return Residue letters (ASCII), shared with this sequence.
+     */
+    byte[] getResidues() {
+        return residues;
     }
 
+    /**
+     * Scores are stored as floats and keep only float precision, e.g. 0.1 is returned as
+     * 0.10000000149011612. {@link JsonWriter} writes them in their shortest float form.
+     */
     public double[] getScores() {
-        return scores;
+        if (scores == null) return null;
+        double[] result = new double[scores.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = scores[i];
+        }
+        return result;
     }
 
     public void setScores(double[] scores) {
-        this.scores = scores;
+        if (scores == null) {
+            this.scores = null;
+            return;
+        }
+        if (scores.length != 0) {
+            checkLength(scores.length, residues != null ? residues.length : -1,
+                    seqNums != null ? seqNums.length : -1);
+        }
+        this.scores = new float[scores.length];
+        for (int i = 0; i < scores.length; i++) {
+            this.scores[i] = (float) scores[i];
+        }
     }
 
+    /**
+     * @return Residue numbers with insertion codes, e.g. "42" or "42A".
+     */
     public String[] getIndices() {
-        return indices;
+        if (seqNums == null) return null;
+        String[] result = new String[seqNums.length];
+        int ins = 0;
+        for (int i = 0; i < result.length; i++) {
+            String index = Integer.toString(seqNums[i]);
+            if (ins < insCodePositions.length && insCodePositions[ins] == i) {
+                index = index.concat(LETTERS[insCodes[ins++] & 0x7F]);
+            }
+            result[i] = index;
+        }
+        return result;
     }
 
+    /**
+     * @param indices Residue numbers optionally followed by an insertion code, e.g. "42A"
+     */
     public void setIndices(String[] indices) {
-        this.indices = indices;
+        if (indices == null) {
+            this.seqNums = null;
+            this.insCodePositions = null;
+            this.insCodes = null;
+            return;
+        }
+        Builder builder = new Builder();
+        for (String index : indices) {
+            int end = index.length();
+            char insCode = 0;
+            if (end > 0 && !Character.isDigit(index.charAt(end - 1))) {
+                insCode = index.charAt(--end);
+            }
+            builder.addResidue('?', Integer.parseInt(index.substring(0, end)), insCode);
+        }
+        checkLength(builder.size, residues != null ? residues.length : -1, scoreCount());
+        this.seqNums = Arrays.copyOf(builder.seqNums, builder.size);
+        this.insCodePositions = Arrays.copyOf(builder.insCodePositions, builder.insCodeCount);
+        this.insCodes = Arrays.copyOf(builder.insCodes, builder.insCodeCount);
+    }
+
+    /**
+     * @return Residue numbers without insertion codes, shared with this sequence.
+     */
+    int[] getSeqNums() {
+        return seqNums;
+    }
+
+    /**
+     * @return Insertion code of the i-th residue, 0 if it has none.
+     */
+    public char getInsCode(int i) {
+        int position = insCodePositions == null ? -1 : Arrays.binarySearch(insCodePositions, i);
+        return position >= 0 ? (char) insCodes[position] : 0;
+    }
+
+    /**
+     * @return Conservation scores, shared with this sequence. Empty if there are none.
+     */
+    float[] getScoreValues() {
+        return scores;
+    }
+
+    int[] getInsCodePositions() {
+        return insCodePositions;
+    }
+
+    byte[] getInsCodes() {
+        return insCodes;
+    }
+
+    /**
+     * @return Number of scores, -1 if there are none.
+     */
+    private int scoreCount() {
+        return scores != null && scores.length != 0 ? scores.length : -1;
+    }
+
+    /**
+     * @param otherLengths Lengths of the other columns, -1 for columns not set
+     * @throws IllegalArgumentException if a column of the given length would not match them
+     */
+    private static void checkLength(int length, int... otherLengths) {
+        for (int otherLength : otherLengths) {
+            if (otherLength >= 0 && otherLength != length) {
+                throw new IllegalArgumentException("Sequence columns differ in length: "
+                        + length + " and " + otherLength + ".");
+            }
+        }
+    }
+
+    public int size() {
+        return residues != null ? residues.length : seqNums != null ? seqNums.length : 0;
     }
 
     public Region[] getRegions() {
@@ -91,43 +290,155 @@ public class Sequence implements Serializable {
         this.bindingSites = bindingSites;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("indices", getIndices());
+        fields.put("seq", getSeq());
+        fields.put("scores", getScores());
+        fields.put("regions", regions);
+        fields.put("bindingSites", bindingSites);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        setIndices((String[]) fields.get("indices", null));
+        setSeq((String[]) fields.get("seq", null));
+        setScores((double[]) fields.get("scores", null));
+        regions = (Region[]) fields.get("regions", null);
+        bindingSites = (int[]) fields.get("bindingSites", null);
+    }
+
     public static Sequence fromStructure(Structure protein,
                                          ConservationScore score,
                                          Set<ResidueNumberWrapper> bindingSites) {
-        List<String> indices = new ArrayList<>();
-        List<String> seq = new ArrayList<>();
-        List<Double> conservationScores = new ArrayList<>();
-        List<Region> regions = new ArrayList<>();
-        List<Integer> sites = new ArrayList<>();
-
-        for (Chain chain : protein.getChains()) {
-            if (chain.getAtomGroups(GroupType.AMINOACID).size() <= 0) continue;
-            String chainId = chain.getChainID().trim().isEmpty() ? "A" : chain.getChainID();
-            int start = indices.size();
-            for (Group group : chain.getAtomGroups(GroupType.AMINOACID)) {
-                String c = group.getChemComp().getOne_letter_code();
-                if (!c.equals("?")) {
-                    seq.add(c);
-                    ResidueNumberWrapper resNum = new ResidueNumberWrapper(group.getResidueNumber());
-                    String insCode = resNum.getResNum().getInsCode() == null
-                            ? "" : resNum.getResNum().getInsCode().toString();
-                    if (score != null && score.size() > 0) {
-                        conservationScores.add(score.getScoreForResidue(resNum));
-                    }
-                    indices.add(resNum.getResNum().getSeqNum().toString().concat(insCode));
-                    if (bindingSites != null && bindingSites.contains(resNum)) {
-                        sites.add(indices.size()-1);
-                    }
+        return fromStructure(ProteinIndex.of(protein), score, bindingSites);
+    }
+
+    public static Sequence fromStructure(ProteinIndex protein,
+                                         ConservationScore score,
+                                         Set<ResidueNumberWrapper> bindingSites) {
+        Builder builder = new Builder();
+        boolean withScores = score != null && score.size() > 0;
+        for (ProteinIndex.ProteinChain chain : protein.getChains()) {
+            List<Group> groups = chain.getGroups();
+            byte[] codes = chain.getCodes();
+            long[] residueKeys = chain.getResidueKeys();
+            builder.startRegion(chain.getId());
+            for (int i = 0; i < codes.length; i++) {
+                char c = ResidueAlphabet.INSTANCE.decode(codes[i]);
+                if (c == '?') continue;
+                ResidueNumber resNum = groups.get(i).getResidueNumber();
+                char insCode = resNum.getInsCode() == null ? 0 : resNum.getInsCode();
+                if (withScores) {
+                    builder.addResidue(c, resNum.getSeqNum(), insCode,
+                            (float) score.getScoreForResidue(residueKeys[i]));
+                } else {
+                    builder.addResidue(c, resNum.getSeqNum(), insCode);
+                }
+                if (bindingSites != null
+                        && bindingSites.contains(new ResidueNumberWrapper(resNum))) {
+                    builder.markBindingSite();
                 }
             }
-            regions.add(new Region(chainId, start, indices.size()-1));
-        }
-        Sequence res = new Sequence();
-        res.indices = indices.toArray(new String[0]);
-        res.seq = seq.toArray(new String[0]);
-        res.scores = conservationScores.stream().mapToDouble(Double::doubleValue).toArray();
-        res.bindingSites = sites.stream().mapToInt(Integer::intValue).toArray();
-        res.regions = regions.toArray(new Region[0]);
-        return res;
+            builder.endRegion();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Builds a sequence from primitive residue data. Residues are added chain by chain, each
+     * chain enclosed in {@link #startRegion(String)} and {@link #endRegion()}.
+     */
+    public static class Builder {
+        private byte[] residues = new byte[64];
+        private int[] seqNums = new int[64];
+        private float[] scores = new float[64];
+        private int size;
+        private int scoreCount;
+        private int[] insCodePositions = new int[4];
+        private byte[] insCodes = new byte[4];
+        private int insCodeCount;
+        private int[] bindingSites = new int[16];
+        private int bindingSiteCount;
+        private final List<Region> regions = new ArrayList<>();
+        private String regionName;
+        private int regionStart;
+
+        public Builder startRegion(String name) {
+            regionName = name;
+            regionStart = size;
+            return this;
+        }
+
+        public Builder endRegion() {
+            if (regionName == null) {
+                throw new IllegalStateException("No region started.");
+            }
+            regions.add(new Region(regionName, regionStart, size - 1));
+            regionName = null;
+            return this;
+        }
+
+        /**
+         * @param insCode Insertion code, 0 for none
+         */
+        public Builder addResidue(char letter, int seqNum, char insCode) {
+            if (size == residues.length) {
+                int capacity = size * 2;
+                residues = Arrays.copyOf(residues, capacity);
+                seqNums = Arrays.copyOf(seqNums, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+            }
+            residues[size] = (byte) (letter < 128 ? letter : '?');
+            seqNums[size] = seqNum;
+            if (insCode != 0) {
+                if (insCodeCount == insCodes.length) {
+                    insCodePositions = Arrays.copyOf(insCodePositions, insCodeCount * 2);
+                    insCodes = Arrays.copyOf(insCodes, insCodeCount * 2);
+                }
+                insCodePositions[insCodeCount] = size;
+                insCodes[insCodeCount++] = (byte) (insCode < 128 ? insCode : '?');
+            }
+            size++;
+            return this;
+        }
+
+        /**
+         * Either all residues or none have a score.
+         */
+        public Builder addResidue(char letter, int seqNum, char insCode, float score) {
+            addResidue(letter, seqNum, insCode);
+            scores[size - 1] = score;
+            scoreCount++;
+            return this;
+        }
+
+        /**
+         * Marks the last added residue as a binding site.
+         */
+        public Builder markBindingSite() {
+            if (size == 0) {
+                throw new IllegalStateException("No residue to mark.");
+            }
+            if (bindingSiteCount == bindingSites.length) {
+                bindingSites = Arrays.copyOf(bindingSites, bindingSiteCount * 2);
+            }
+            bindingSites[bindingSiteCount++] = size - 1;
+            return this;
+        }
+
+        public Sequence build() {
+            if (scoreCount != 0 && scoreCount != size) {
+                throw new IllegalStateException("Only " + scoreCount + " of " + size
+                        + " residues have a score.");
+            }
+            return new Sequence(Arrays.copyOf(residues, size), Arrays.copyOf(seqNums, size),
+                    Arrays.copyOf(insCodePositions, insCodeCount),
+                    Arrays.copyOf(insCodes, insCodeCount),
+                    Arrays.copyOf(scores, scoreCount),
+                    regions.toArray(new Region[0]),
+                    Arrays.copyOf(bindingSites, bindingSiteCount));
+        }
     }
 }
@@ -0,0 +1,218 @@
+package cz.siret.prank.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Binary form of {@link Sequence}, several times smaller and faster than Java serialization.
+ *
+ * Layout: magic "PSEQ", format version byte, then the residue count and the residue letters,
+ * residue numbers as deltas from the previous residue, insertion codes as (position delta,
+ * code) pairs, the float32 scores (if any), the regions (name flag, name, start, length)
+ * and the binding sites as deltas. Counts and deltas are zigzag varints, everything else is
+ * big endian.
+ */
+public final class SequenceCodec {
+    public static final int VERSION = 2;
+
+    private static final int MAGIC = 0x50534551; // "PSEQ"
+
+    private SequenceCodec() {
+    }
+
+    public static byte[] encode(Sequence sequence) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(sequence.size() * 3 + 64);
+        try {
+            write(sequence, bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Not thrown by ByteArrayOutputStream.
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Unlike {@link #read(InputStream)}, checks every count against the remaining data
+     * before allocating.
+     */
+    public static Sequence decode(byte[] data) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        return read(in, in);
+    }
+
+    /**
+     * Writes the sequence, the stream is not closed.
+     */
+    public static void write(Sequence sequence, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+
+        int[] seqNums = sequence.getSeqNums();
+        byte[] residues = sequence.getResidues();
+        if (residues == null) {
+            // Residue numbers alone, the letters are unknown.
+            residues = new byte[seqNums != null ? seqNums.length : 0];
+            Arrays.fill(residues, (byte) '?');
+        }
+        if (seqNums == null) seqNums = new int[residues.length];
+        if (seqNums.length != residues.length) {
+            throw new IllegalArgumentException("Sequence has " + residues.length
+                    + " residues but " + seqNums.length + " indices.");
+        }
+        writeVarInt(data, residues.length);
+        data.write(residues);
+        int previous = 0;
+        for (int seqNum : seqNums) {
+            writeVarInt(data, seqNum - previous);
+            previous = seqNum;
+        }
+
+        int[] insCodePositions = orEmpty(sequence.getInsCodePositions());
+        byte[] insCodes = orEmpty(sequence.getInsCodes());
+        writeVarInt(data, insCodePositions.length);
+        previous = 0;
+        for (int i = 0; i < insCodePositions.length; i++) {
+            writeVarInt(data, insCodePositions[i] - previous);
+            previous = insCodePositions[i];
+            data.writeByte(insCodes[i]);
+        }
+
+        float[] scores = sequence.getScoreValues();
+        if (scores == null) scores = new float[0];
+        writeVarInt(data, scores.length);
+        for (float score : scores) {
+            data.writeFloat(score);
+        }
+
+        Sequence.Region[] regions = sequence.getRegions();
+        if (regions == null) regions = new Sequence.Region[0];
+        writeVarInt(data, regions.length);
+        for (Sequence.Region region : regions) {
+            data.writeBoolean(region.getRegionName() != null);
+            if (region.getRegionName() != null) data.writeUTF(region.getRegionName());
+            writeVarInt(data, region.getStart());
+            writeVarInt(data, region.getEnd() - region.getStart());
+        }
+
+        int[] bindingSites = orEmpty(sequence.getBindingSites());
+        writeVarInt(data, bindingSites.length);
+        previous = 0;
+        for (int site : bindingSites) {
+            writeVarInt(data, site - previous);
+            previous = site;
+        }
+        data.flush();
+    }
+
+    public static Sequence read(InputStream in) throws IOException {
+        return read(in, null);
+    }
+
+    /**
+     * @param bounds Stream whose remaining bytes bound the counts, null for no check
+     */
+    private static Sequence read(InputStream in, ByteArrayInputStream bounds)
+            throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a binary sequence.");
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary sequence version " + version);
+        }
+
+        // Counts are checked against the smallest encoding of their elements.
+        byte[] residues = new byte[readCount(data, 2, bounds)];
+        data.readFully(residues);
+        int[] seqNums = new int[residues.length];
+        int previous = 0;
+        for (int i = 0; i < seqNums.length; i++) {
+            previous += readVarInt(data);
+            seqNums[i] = previous;
+        }
+
+        int insCodeCount = readCount(data, 2, bounds);
+        int[] insCodePositions = new int[insCodeCount];
+        byte[] insCodes = new byte[insCodeCount];
+        previous = 0;
+        for (int i = 0; i < insCodeCount; i++) {
+            previous += readVarInt(data);
+            insCodePositions[i] = previous;
+            insCodes[i] = data.readByte();
+        }
+
+        float[] scores = new float[readCount(data, 4, bounds)];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = data.readFloat();
+        }
+
+        Sequence.Region[] regions = new Sequence.Region[readCount(data, 3, bounds)];
+        for (int i = 0; i < regions.length; i++) {
+            String name = data.readBoolean() ? data.readUTF() : null;
+            int start = readVarInt(data);
+            regions[i] = new Sequence.Region(name, start, start + readVarInt(data));
+        }
+
+        int[] bindingSites = new int[readCount(data, 1, bounds)];
+        previous = 0;
+        for (int i = 0; i < bindingSites.length; i++) {
+            previous += readVarInt(data);
+            bindingSites[i] = previous;
+        }
+        try {
+            return new Sequence(residues, seqNums, insCodePositions, insCodes, scores, regions,
+                    bindingSites);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupted binary sequence.", e);
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            out.writeByte((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte(zigzag);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int zigzag = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigzag |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed varint in binary sequence.");
+    }
+
+    private static int readCount(DataInputStream in, int minBytesPerElement,
+                                 ByteArrayInputStream bounds) throws IOException {
+        int count = readVarInt(in);
+        if (count < 0) {
+            throw new EOFException("Negative count in binary sequence.");
+        }
+        if (bounds != null && (long) count * minBytesPerElement > bounds.available()) {
+            throw new EOFException("Count " + count + " exceeds the binary sequence.");
+        }
+        return count;
+    }
+
+    private static byte[] orEmpty(byte[] array) {
+        return array != null ? array : new byte[0];
+    }
+
+    private static int[] orEmpty(int[] array) {
+        return array != null ? array : new int[0];
+    }
+}
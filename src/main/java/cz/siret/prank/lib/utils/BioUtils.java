@@ -1,7 +1,6 @@
 package cz.siret.prank.lib.utils;
 
 import org.biojava.nbio.structure.Chain;
-import org.biojava.nbio.structure.GroupType;
 import org.biojava.nbio.structure.Structure;
 import org.biojava.nbio.structure.StructureException;
 import org.biojava.nbio.structure.io.PDBFileReader;
@@ -17,23 +16,71 @@ import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
 
+import cz.siret.prank.lib.ProteinIndex;
+
 public enum BioUtils {
     INSTANCE;
 
     private final transient Logger logger = LoggerFactory.getLogger(getClass());
 
+    private volatile StructureCache structureCache;
+
+    /**
+     * Same output as {@link #pdbToFasta(Structure, String)} for all chains. Reads only the
+     * ATOM and HETATM records (see {@link PdbSequenceReader}) when the file has an id code,
+     * standard chain ids and only residues with ChemComp definitions, otherwise parses the
+     * structure.
+     */
     public Map<String, String> pdbToFasta(File pdbFile) throws IOException,
             StructureException {
-        return pdbToFasta(loadPdbFile(pdbFile), null);
+        PdbSequenceReader.Sequences sequences = readSequences(pdbFile);
+        if (sequences == null || sequences.getIdCode().isEmpty()
+                || !sequences.hasStandardChainIds()) {
+            return pdbToFasta(loadPdbFile(pdbFile), null);
+        }
+        Map<String, String> output = new HashMap<>();
+        String header = ">" + sequences.getIdCode() + ":";
+        // Homo-oligomers share the sequence, format it once per distinct chain.
+        Map<String, String> bodies = new HashMap<>();
+        for (Map.Entry<String, String> chain : sequences.getSequences().entrySet()) {
+            String body = bodies.computeIfAbsent(chain.getValue(), this::fastaBody);
+            if (body != null) {
+                output.put(chain.getKey(), header.concat(chain.getKey()).concat(body));
+            }
+        }
+        return output;
+    }
+
+    /**
+     * @return Sequences read without BioJava, null if the file has unknown residues.
+     */
+    private PdbSequenceReader.Sequences readSequences(File pdbFile) throws IOException {
+        try {
+            return PdbSequenceReader.INSTANCE.readSequences(pdbFile);
+        } catch (PdbSequenceReader.UnknownResidueException e) {
+            logger.debug("Parsing [{}] with BioJava: {}", pdbFile, e.getMessage());
+            return null;
+        }
     }
 
     public String chainToFasta(Chain chain, String header) {
-        StringBuilder result = new StringBuilder();
-        String seq = chain.getAtomSequence().trim();
+        String body = fastaBody(chain);
+        return body == null ? null : header.concat(chain.getChainID()).concat(body);
+    }
+
+    /**
+     * @return FASTA record of the chain without the header line, i.e. the line break and the
+     * sequence wrapped at 80 characters. Null if the chain has no sequence.
+     */
+    private String fastaBody(Chain chain) {
+        return fastaBody(chain.getAtomSequence());
+    }
+
+    private String fastaBody(String sequence) {
+        String seq = sequence.trim();
         if (seq.length() == 0) return null;
-        // Print the header like this: >4X09:A
-        result.append(header).append(chain.getChainID()).append('\n');
-        // Print the chain sequence and wrap lines at 80 characters
+        StringBuilder result = new StringBuilder(seq.length() + seq.length() / 80 + 1);
+        result.append('\n');
         for (int i = 0; i < seq.length(); i++) {
             if (i != 0 && i % 80 == 0) result.append('\n');
             result.append(seq.charAt(i));
@@ -41,7 +88,39 @@ public enum BioUtils {
         return result.toString();
     }
 
+    /**
+     * Groups protein chains with identical residue sequences (the same residue names in the
+     * same order), so that work depending only on the sequence is done once per group.
+     *
+     * @return Map from the ids of protein chains (blank ids replaced by "A") to the id of the
+     * first chain with the same sequence, in chain order
+     */
+    public Map<String, String> identicalChains(Structure protein) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (ProteinIndex.ProteinChain chain : ProteinIndex.of(protein).getChains()) {
+            result.putIfAbsent(chain.getId(), chain.getFirstIdenticalId());
+        }
+        return result;
+    }
+
+    public StructureCache getStructureCache() {
+        return structureCache;
+    }
+
+    /**
+     * @param structureCache Cache used by {@link #loadPdbFile(File)}, null (default) parses
+     *                       the file on every call
+     */
+    public void setStructureCache(StructureCache structureCache) {
+        this.structureCache = structureCache;
+    }
+
     public Structure loadPdbFile(File pdbFile) throws IOException {
+        StructureCache cache = structureCache;
+        return cache != null ? cache.get(pdbFile, this::parsePdbFile) : parsePdbFile(pdbFile);
+    }
+
+    private Structure parsePdbFile(File pdbFile) throws IOException {
         logger.info("Loading pdb file [{}]", pdbFile.getAbsolutePath());
         PDBFileReader pdbReader = new PDBFileReader();
         try (InputStream inputStream = Utils.INSTANCE.readFile(pdbFile)) {
@@ -51,24 +130,38 @@ public enum BioUtils {
 
     public Map<String, String> pdbToFasta(Structure protein, String chainId) throws
             IOException, StructureException {
+        if (chainId == null) {
+            return pdbToFasta(ProteinIndex.of(protein));
+        }
         Map<String, String> output = new HashMap<>();
         String header = ">" + protein.getPDBHeader().getIdCode() + ":";
-        if (chainId == null) {
-            for (Chain chain : protein.getChains()) {
-                String chId = chain.getChainID().trim().isEmpty() ? "A" : chain.getChainID();
-                if (chain.getAtomGroups(GroupType.AMINOACID).size() <= 0) continue;
-                String chainFasta = chainToFasta(chain, header);
-                if (chainFasta != null) {
-                    output.put(chId, chainFasta);
-                }
-            }
-        } else {
-            Chain chain = chainId.isEmpty() ?
-                    protein.getChains().get(0) :
-                    protein.getChainByPDB(chainId);
-            String chainFasta = chainToFasta(chain, header);
-            if (chainFasta != null) {
-                output.put(chain.getChainID(), chainFasta);
+        Chain chain = chainId.isEmpty() ?
+                protein.getChains().get(0) :
+                protein.getChainByPDB(chainId);
+        String chainFasta = chainToFasta(chain, header);
+        if (chainFasta != null) {
+            output.put(chain.getChainID(), chainFasta);
+        }
+        return output;
+    }
+
+    /**
+     * @return Map from normalized chain ids to FASTA records of all protein chains
+     */
+    public Map<String, String> pdbToFasta(ProteinIndex protein) {
+        Map<String, String> output = new HashMap<>();
+        String header = ">" + protein.getStructure().getPDBHeader().getIdCode() + ":";
+        // Homo-oligomers share the sequence, format it once per distinct chain.
+        Map<String, String> bodies = new HashMap<>();
+        for (ProteinIndex.ProteinChain chain : protein.getChains()) {
+            String firstId = chain.getFirstIdenticalId();
+            String body = bodies.containsKey(firstId)
+                    ? bodies.get(firstId) : fastaBody(chain.getChain());
+            bodies.put(firstId, body);
+            if (body != null) {
+                // Print the header like this: >4X09:A
+                output.put(chain.getId(), header.concat(chain.getChain().getChainID())
+                        .concat(body));
             }
         }
         return output;
@@ -116,6 +209,9 @@ public enum BioUtils {
         return result;
     }
 
+    private static final String NO_PROTEIN_ERROR =
+            "The PDB file does not contain any protein structure.";
+
     public static final String CONSERVATION_FILENAME_PATTERN = "%baseName%.%chainID%.%ext%";
     public Map<String, Tuple2<File, File>> copyAndGzipConservationAndMSAsToDir(
             Map<String, Tuple2<File, File>> conservationAndMSAs, String baseName, Path destDir) throws IOException {
@@ -145,26 +241,53 @@ public enum BioUtils {
         return result;
     }
 
-    public int getProteinSize(Structure protein) {
-        int resCount = 0;
-        for (final Chain chain : protein.getChains()) {
-            if (chain.getAtomGroups(GroupType.AMINOACID).size() <= 0) continue;
-            resCount += chain.getAtomGroups(GroupType.AMINOACID).size();
+    /**
+     * @return Number of amino acids in the first model, read without building a Structure
+     * unless the file has residues without ChemComp definitions.
+     */
+    public int getProteinSize(File pdbFile) throws IOException {
+        try {
+            return PdbSequenceReader.INSTANCE.countAminoAcids(pdbFile);
+        } catch (PdbSequenceReader.UnknownResidueException e) {
+            logger.debug("Parsing [{}] with BioJava: {}", pdbFile, e.getMessage());
+            return getProteinSize(loadPdbFile(pdbFile));
         }
-        return resCount;
     }
 
+    public int getProteinSize(Structure protein) {
+        return ProteinIndex.of(protein).getResidueCount();
+    }
+
+    public int getProteinSize(ProteinIndex protein) {
+        return protein.getResidueCount();
+    }
+
+    /**
+     * @return Error message, null if the structure contains protein chains.
+     */
+    public String checkForPdbFileErrors(Structure protein) {
+        return checkForPdbFileErrors(ProteinIndex.of(protein));
+    }
+
+    public String checkForPdbFileErrors(ProteinIndex protein) {
+        return protein.isEmpty() ? NO_PROTEIN_ERROR : null;
+    }
+
+    /**
+     * Reads the file without building a Structure unless it has residues without ChemComp
+     * definitions.
+     */
     public String checkForPdbFileErrors(File pdbFile) {
         try {
-            Structure protein = loadPdbFile(pdbFile);
-            boolean hasAminoChains = false;
-            for (Chain chain : protein.getChains()) {
-                if (chain.getAtomGroups(GroupType.AMINOACID).size() > 0) {
-                    hasAminoChains = true;
-                    break;
-                }
-            }
-            return hasAminoChains ? null : "The PDB file does not contain any protein structure.";
+            return PdbSequenceReader.INSTANCE.countAminoAcids(pdbFile) > 0
+                    ? null : NO_PROTEIN_ERROR;
+        } catch (PdbSequenceReader.UnknownResidueException e) {
+            logger.debug("Parsing [{}] with BioJava: {}", pdbFile, e.getMessage());
+        } catch (Exception e) {
+            return "Failed to load PDB file. ".concat(e.toString());
+        }
+        try {
+            return checkForPdbFileErrors(loadPdbFile(pdbFile));
         } catch (Exception e) {
             return "Failed to load PDB file. ".concat(e.toString());
         }
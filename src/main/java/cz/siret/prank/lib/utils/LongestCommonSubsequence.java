@@ -0,0 +1,162 @@
+package cz.siret.prank.lib.utils;
+
+/**
+ * Longest common subsequence of two residue code sequences.
+ *
+ * The length is computed with the bit-parallel algorithm of Allison and Dix (in the
+ * formulation of Hyyro), processing 64 cells of the DP table per machine word. The actual
+ * alignment is recovered with Hirschberg's divide and conquer on top of the same kernel, so
+ * memory stays linear in the sequence lengths.
+ */
+public enum LongestCommonSubsequence {
+    INSTANCE;
+
+    /**
+     * Sub-problems with at most this many DP cells are solved with the classic table.
+     */
+    private static final int SMALL_PROBLEM_CELLS = 1 << 12;
+
+    /**
+     * @return Length of the longest common subsequence of a and b.
+     */
+    public int length(byte[] a, byte[] b) {
+        if (a.length == 0 || b.length == 0) return 0;
+        // Bit vectors are laid over the shorter sequence.
+        byte[] rows = a.length >= b.length ? a : b;
+        byte[] cols = a.length >= b.length ? b : a;
+        long[] v = runKernel(rows, cols);
+        int ones = 0;
+        for (long word : v) {
+            ones += Long.bitCount(word);
+        }
+        // Padding bits above cols.length stay set, see runKernel.
+        return v.length * 64 - ones;
+    }
+
+    /**
+     * Aligns a to b along one of their longest common subsequences.
+     *
+     * @return Array of a.length elements, holding for each position of a the matched position
+     * in b, or -1 if the position is not part of the common subsequence.
+     */
+    public int[] align(byte[] a, byte[] b) {
+        int[] result = new int[a.length];
+        for (int i = 0; i < result.length; i++) result[i] = -1;
+        hirschberg(a, 0, a.length, b, 0, b.length, result);
+        return result;
+    }
+
+    private void hirschberg(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo,
+                            int[] result) {
+        int m = aTo - aFrom;
+        int n = bTo - bFrom;
+        if (m == 0 || n == 0) return;
+        if (m == 1 || (long) m * n <= SMALL_PROBLEM_CELLS) {
+            alignSmall(a, aFrom, aTo, b, bFrom, bTo, result);
+            return;
+        }
+        int aMid = aFrom + m / 2;
+        int[] forward = prefixLengths(copy(a, aFrom, aMid, false), copy(b, bFrom, bTo, false));
+        int[] backward = prefixLengths(copy(a, aMid, aTo, true), copy(b, bFrom, bTo, true));
+        int bestSplit = 0;
+        int best = -1;
+        for (int k = 0; k <= n; k++) {
+            int total = forward[k] + backward[n - k];
+            if (total > best) {
+                best = total;
+                bestSplit = k;
+            }
+        }
+        hirschberg(a, aFrom, aMid, b, bFrom, bFrom + bestSplit, result);
+        hirschberg(a, aMid, aTo, b, bFrom + bestSplit, bTo, result);
+    }
+
+    /**
+     * @return Array where element j is the LCS length of rows and the first j symbols of cols.
+     */
+    private int[] prefixLengths(byte[] rows, byte[] cols) {
+        long[] v = runKernel(rows, cols);
+        int[] result = new int[cols.length + 1];
+        int zeros = 0;
+        for (int j = 0; j < cols.length; j++) {
+            if ((v[j >>> 6] & (1L << j)) == 0) zeros++;
+            result[j + 1] = zeros;
+        }
+        return result;
+    }
+
+    /**
+     * Runs the bit-parallel LCS recurrence with one bit per symbol of cols.
+     *
+     * @return Final bit vector; zero bits mark the columns where the LCS grows, bits above
+     * cols.length are always set.
+     */
+    private long[] runKernel(byte[] rows, byte[] cols) {
+        int words = (cols.length + 63) >>> 6;
+        // Match masks, one row of words per distinct symbol of cols.
+        int[] slots = new int[256];
+        int slotCount = 0;
+        for (byte c : cols) {
+            if (slots[c & 0xFF] == 0) slots[c & 0xFF] = ++slotCount;
+        }
+        long[] masks = new long[slotCount * words];
+        for (int j = 0; j < cols.length; j++) {
+            masks[(slots[cols[j] & 0xFF] - 1) * words + (j >>> 6)] |= 1L << j;
+        }
+
+        long[] v = new long[words];
+        for (int w = 0; w < words; w++) v[w] = -1L;
+        for (byte c : rows) {
+            int slot = slots[c & 0xFF];
+            // A symbol missing in cols leaves the vector unchanged.
+            if (slot == 0) continue;
+            int offset = (slot - 1) * words;
+            long carry = 0;
+            for (int w = 0; w < words; w++) {
+                long x = v[w];
+                long mask = masks[offset + w];
+                long u = x & mask;
+                long sum = x + u + carry;
+                carry = ((x & u) | ((x | u) & ~sum)) >>> 63;
+                v[w] = sum | (x & ~mask);
+            }
+        }
+        return v;
+    }
+
+    private void alignSmall(byte[] a, int aFrom, int aTo, byte[] b, int bFrom, int bTo,
+                            int[] result) {
+        int m = aTo - aFrom;
+        int n = bTo - bFrom;
+        int[][] lcs = new int[m + 1][n + 1];
+        for (int i = 1; i <= m; i++) {
+            for (int j = 1; j <= n; j++) {
+                if (a[aFrom + i - 1] == b[bFrom + j - 1]) {
+                    lcs[i][j] = lcs[i - 1][j - 1] + 1;
+                } else {
+                    lcs[i][j] = Math.max(lcs[i - 1][j], lcs[i][j - 1]);
+                }
+            }
+        }
+        int i = m, j = n;
+        while (i > 0 && j > 0) {
+            if (a[aFrom + i - 1] == b[bFrom + j - 1]) {
+                result[aFrom + i - 1] = bFrom + j - 1;
+                i--;
+                j--;
+            } else if (lcs[i][j - 1] > lcs[i - 1][j]) {
+                j--;
+            } else {
+                i--;
+            }
+        }
+    }
+
+    private static byte[] copy(byte[] source, int from, int to, boolean reverse) {
+        byte[] result = new byte[to - from];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = reverse ? source[to - 1 - i] : source[from + i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,239 @@
+package cz.siret.prank.lib.utils;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Decompresses bzip2 data on several threads.
+ *
+ * bzip2 blocks start with a 48-bit magic number and are not byte aligned. The compressed
+ * data is scanned for the magic numbers, every block is wrapped into a standalone single
+ * block bzip2 stream and decoded on the pool, and the output is handed out in order. Each
+ * block is still verified against its own CRC by the decoder. Concatenated streams (as
+ * written by pbzip2) are decoded as a whole.
+ *
+ * A magic number can also occur by chance inside compressed data. If a block then fails to
+ * decode, the stream falls back to sequential decompression from the current position.
+ */
+public class ParallelBZip2InputStream extends InputStream {
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = (1L << 48) - 1;
+    private static final byte[] STREAM_HEADER = {'B', 'Z', 'h', '9'};
+
+    private final byte[] data;
+    private final ExecutorService pool;
+    private final int maxInFlight;
+    /**
+     * Bit offsets of the blocks; block i spans bits [blockStarts[i], blockEnds[i]).
+     */
+    private final long[] blockStarts;
+    private final long[] blockEnds;
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private int nextBlock;
+    private byte[] current = new byte[0];
+    private int position;
+    private long delivered;
+    private InputStream fallback;
+
+    /**
+     * @param data    Complete bzip2 compressed data
+     * @param pool    Executor running the block decoders
+     * @param threads Number of threads of the pool available to this stream, bounds the
+     *                number of decoded blocks held in memory
+     */
+    public ParallelBZip2InputStream(byte[] data, ExecutorService pool, int threads) {
+        this.data = data;
+        this.pool = pool;
+        this.maxInFlight = Math.max(1, threads) * 2;
+        List<long[]> blocks = findBlocks(data);
+        this.blockStarts = new long[blocks.size()];
+        this.blockEnds = new long[blocks.size()];
+        for (int i = 0; i < blocks.size(); i++) {
+            blockStarts[i] = blocks.get(i)[0];
+            blockEnds[i] = blocks.get(i)[1];
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n <= 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (fallback != null) {
+            return fallback.read(b, off, len);
+        }
+        while (position == current.length) {
+            if (!nextChunk()) {
+                return fallback != null ? fallback.read(b, off, len) : -1;
+            }
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        delivered += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> task : inFlight) {
+            task.cancel(true);
+        }
+        inFlight.clear();
+        if (fallback != null) {
+            fallback.close();
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (blockStarts.length == 0) {
+            // Nothing recognized, let the sequential decoder report what is wrong.
+            startFallback();
+            return false;
+        }
+        while (nextBlock < blockStarts.length && inFlight.size() < maxInFlight) {
+            final int block = nextBlock++;
+            inFlight.add(pool.submit(() -> decodeBlock(block)));
+        }
+        if (inFlight.isEmpty()) return false;
+        try {
+            current = Utils.INSTANCE.await(inFlight.poll());
+        } catch (IOException | RuntimeException e) {
+            // A falsely detected block boundary can make the decoder fail in any way.
+            startFallback();
+            return false;
+        }
+        position = 0;
+        return true;
+    }
+
+    private void startFallback() throws IOException {
+        close();
+        fallback = new BZip2CompressorInputStream(new ByteArrayInputStream(data), true);
+        long toSkip = delivered;
+        while (toSkip > 0) {
+            long skipped = fallback.skip(toSkip);
+            if (skipped <= 0) throw new IOException("Corrupted bzip2 data.");
+            toSkip -= skipped;
+        }
+    }
+
+    private byte[] decodeBlock(int block) throws IOException {
+        long start = blockStarts[block];
+        long end = blockEnds[block];
+        BitWriter stream = new BitWriter((int) ((end - start) / 8) + 32);
+        for (byte b : STREAM_HEADER) {
+            stream.write(b & 0xFF, 8);
+        }
+        stream.copyBits(data, start, end - start);
+        stream.write(END_MAGIC >>> 24, 24);
+        stream.write(END_MAGIC & 0xFFFFFF, 24);
+        // The stream CRC of a single block stream equals the block CRC following the magic.
+        stream.copyBits(data, start + 48, 32);
+        ByteArrayOutputStream result = new ByteArrayOutputStream(900 * 1024);
+        try (InputStream in = new BZip2CompressorInputStream(
+                new ByteArrayInputStream(stream.toByteArray()), false)) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                result.write(buffer, 0, n);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * @return Bit ranges of the compressed blocks, from a block magic to the next magic.
+     */
+    private static List<long[]> findBlocks(byte[] data) {
+        List<long[]> blocks = new ArrayList<>();
+        long register = 0;
+        long openBlock = -1;
+        for (int i = 0; i < data.length; i++) {
+            register = (register << 8) | (data[i] & 0xFF);
+            if (i < 5) continue;
+            // Try all 8 alignments of a magic ending within this byte.
+            for (int shift = 7; shift >= 0; shift--) {
+                long candidate = (register >>> shift) & MAGIC_MASK;
+                if (candidate != BLOCK_MAGIC && candidate != END_MAGIC) continue;
+                long bitStart = (i + 1) * 8L - shift - 48;
+                if (bitStart < 0) continue;
+                if (openBlock >= 0) {
+                    blocks.add(new long[]{openBlock, bitStart});
+                }
+                openBlock = candidate == BLOCK_MAGIC ? bitStart : -1;
+            }
+        }
+        if (openBlock >= 0) {
+            // Truncated stream, let the decoder fail on the last block.
+            blocks.add(new long[]{openBlock, data.length * 8L});
+        }
+        return blocks;
+    }
+
+    private static final class BitWriter {
+        private byte[] buffer;
+        private int length;
+        private long bits;
+        private int bitCount;
+
+        private BitWriter(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        private void write(long value, int count) {
+            bits = (bits << count) | (value & ((1L << count) - 1));
+            bitCount += count;
+            while (bitCount >= 8) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                buffer[length++] = (byte) (bits >>> (bitCount - 8));
+                bitCount -= 8;
+            }
+            bits &= (1L << bitCount) - 1;
+        }
+
+        private void copyBits(byte[] source, long from, long count) {
+            long bit = from;
+            long end = from + count;
+            // Bit by bit up to a byte boundary of the source, then whole bytes.
+            while (bit < end && (bit & 7) != 0) {
+                write((source[(int) (bit >>> 3)] >>> (7 - (bit & 7))) & 1, 1);
+                bit++;
+            }
+            while (end - bit >= 8) {
+                write(source[(int) (bit >>> 3)] & 0xFF, 8);
+                bit += 8;
+            }
+            while (bit < end) {
+                write((source[(int) (bit >>> 3)] >>> (7 - (bit & 7))) & 1, 1);
+                bit++;
+            }
+        }
+
+        private byte[] toByteArray() {
+            if (bitCount > 0) {
+                write(0, 8 - bitCount);
+            }
+            return Arrays.copyOf(buffer, length);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package cz.siret.prank.lib.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream that compresses blocks of input in parallel, in the manner of pigz.
+ *
+ * Every block is deflated independently, primed with the last 32 KiB of the previous block
+ * as a dictionary so the ratio stays close to a single-threaded stream, and ends with a sync
+ * flush so the raw deflate streams can be concatenated. The result is one ordinary gzip
+ * member readable by any gzip implementation.
+ */
+public class ParallelGzipOutputStream extends FilterOutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final ExecutorService pool;
+    private final int blockSize;
+    private final int level;
+    private final int maxInFlight;
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long totalIn;
+    private byte[] block;
+    private int blockLength;
+    private byte[] previousBlock;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService pool, int threads)
+            throws IOException {
+        this(out, pool, threads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param pool      Executor running the compression tasks
+     * @param threads   Number of threads of the pool available to this stream, bounds the
+     *                  number of blocks held in memory
+     * @param blockSize Size of the independently compressed blocks, at least 32 KiB
+     * @param level     Deflate compression level
+     */
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService pool, int threads,
+                                    int blockSize, int level) throws IOException {
+        super(out);
+        this.pool = pool;
+        this.blockSize = Math.max(blockSize, DICTIONARY_SIZE);
+        this.level = level;
+        this.maxInFlight = Math.max(1, threads) * 2;
+        this.block = new byte[this.blockSize];
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed.");
+        crc.update(b, off, len);
+        totalIn += len;
+        while (len > 0) {
+            int chunk = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, chunk);
+            blockLength += chunk;
+            off += chunk;
+            len -= chunk;
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Writes out the blocks compressed so far. Data of a partially filled block stays
+     * buffered, a gzip stream cannot be flushed mid-block without hurting the ratio.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!inFlight.isEmpty()) {
+            out.write(Utils.INSTANCE.await(inFlight.poll()));
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        try {
+            // The last block may be empty, it still carries the final deflate block.
+            submitBlock(true);
+            while (!inFlight.isEmpty()) {
+                out.write(Utils.INSTANCE.await(inFlight.poll()));
+            }
+            writeIntLE((int) crc.getValue());
+            writeIntLE((int) totalIn);
+            out.flush();
+        } finally {
+            closed = true;
+            for (Future<byte[]> task : inFlight) {
+                task.cancel(true);
+            }
+            out.close();
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        final byte[] data = block;
+        final int length = blockLength;
+        final byte[] dictionary = previousBlock == null ? null
+                : Arrays.copyOfRange(previousBlock, blockSize - DICTIONARY_SIZE, blockSize);
+        inFlight.add(pool.submit(() -> deflate(data, length, dictionary, last)));
+        previousBlock = data;
+        block = new byte[blockSize];
+        blockLength = 0;
+        while (inFlight.size() >= maxInFlight) {
+            out.write(Utils.INSTANCE.await(inFlight.poll()));
+        }
+    }
+
+    private byte[] deflate(byte[] data, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[Math.max(length / 2, 4096)];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    result.write(buffer, 0, n);
+                }
+            } else {
+                // A sync flush ends the block on a byte boundary without marking it final.
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    result.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        out.write((value >>> 16) & 0xff);
+        out.write((value >>> 24) & 0xff);
+    }
+}
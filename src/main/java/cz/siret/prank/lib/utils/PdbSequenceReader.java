@@ -0,0 +1,330 @@
+package cz.siret.prank.lib.utils;
+
+import org.biojava.nbio.structure.io.mmcif.ChemCompGroupFactory;
+import org.biojava.nbio.structure.io.mmcif.chem.PolymerType;
+import org.biojava.nbio.structure.io.mmcif.model.ChemComp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads chain sequences straight from the ATOM and HETATM records of a PDB file (plain or
+ * gzipped) without building a BioJava Structure.
+ *
+ * Only the first model is read. A residue starts whenever the chain, sequence number or
+ * insertion code changes, residues with another name at the same position are alternate
+ * locations. Residue names are classified through the ChemComp definitions BioJava uses
+ * when parsing, whatever the record type: peptide components are amino acids like the
+ * AMINOACID groups of BioJava, nucleotides are part of the sequence, other components
+ * (ligands, water) are skipped. Sequences use the letters of
+ * {@link org.biojava.nbio.structure.Chain#getAtomSequence()}. Names without a ChemComp
+ * definition raise {@link UnknownResidueException}, since BioJava classifies them by
+ * record type and context.
+ *
+ * The standard amino acids, nucleotides and water come from a static table. Other names go
+ * through {@link ChemCompGroupFactory} once per name and JVM, which may read or download
+ * their definitions just like BioJava does when it parses the same file.
+ */
+public enum PdbSequenceReader {
+    INSTANCE;
+
+    /**
+     * Chain sequences of a PDB file.
+     */
+    public static class Sequences {
+        private String idCode = "";
+        private final Map<String, StringBuilder> sequences = new LinkedHashMap<>();
+        private final Map<String, Integer> aminoAcids = new HashMap<>();
+        private final List<String> polymerChains = new ArrayList<>();
+        private final Set<String> atomChains = new HashSet<>();
+        private boolean splitChains;
+
+        /**
+         * @return Id code from the HEADER record, empty if missing.
+         */
+        public String getIdCode() {
+            return idCode;
+        }
+
+        /**
+         * @return Map from ids of chains with at least one amino acid to their sequences, in
+         * file order. Chain ids are as in the file, blank ids are not replaced.
+         */
+        public Map<String, String> getSequences() {
+            Map<String, String> result = new LinkedHashMap<>();
+            for (Map.Entry<String, StringBuilder> sequence : sequences.entrySet()) {
+                if (aminoAcids.containsKey(sequence.getKey())) {
+                    result.put(sequence.getKey(), sequence.getValue().toString());
+                }
+            }
+            return result;
+        }
+
+        public int getAminoAcidCount(String chainId) {
+            return aminoAcids.getOrDefault(chainId, 0);
+        }
+
+        /**
+         * BioJava renames chains when parsing, polymer chains get the ids A, B, C, ... in
+         * file order. The ids of this reader are the same only if the file already uses
+         * them.
+         *
+         * @return Whether the chains with amino acids or nucleotides are named A, B, C, ...
+         * in file order, each with ATOM records in one block.
+         */
+        public boolean hasStandardChainIds() {
+            if (splitChains || polymerChains.size() > 26) return false;
+            for (int i = 0; i < polymerChains.size(); i++) {
+                String chainId = polymerChains.get(i);
+                if (!chainId.equals(String.valueOf((char) ('A' + i)))
+                        || !atomChains.contains(chainId)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void add(String chainId, char letter, boolean aminoAcid, boolean hetatm) {
+            int last = polymerChains.size() - 1;
+            if (last < 0 || !polymerChains.get(last).equals(chainId)) {
+                if (sequences.containsKey(chainId)) splitChains = true;
+                polymerChains.add(chainId);
+            }
+            StringBuilder sequence = sequences.get(chainId);
+            if (sequence == null) {
+                sequence = new StringBuilder();
+                sequences.put(chainId, sequence);
+            }
+            sequence.append(letter);
+            if (aminoAcid) aminoAcids.merge(chainId, 1, Integer::sum);
+            if (!hetatm) atomChains.add(chainId);
+        }
+    }
+
+    public interface ResidueVisitor {
+        /**
+         * Called for amino acids and nucleotides.
+         *
+         * @param chainId   Chain id as in the file
+         * @param letter    One letter code, X if unknown
+         * @param aminoAcid Whether the residue is an amino acid
+         * @param hetatm    Whether the residue is in HETATM records
+         * @return false to stop reading
+         */
+        boolean visit(String chainId, char letter, boolean aminoAcid, boolean hetatm);
+    }
+
+    /**
+     * A residue name without a ChemComp definition.
+     */
+    public static class UnknownResidueException extends IOException {
+        private final String residueName;
+
+        public UnknownResidueException(String residueName, int lineNumber) {
+            super("Unknown residue " + residueName + " on line " + lineNumber);
+            this.residueName = residueName;
+        }
+
+        public String getResidueName() {
+            return residueName;
+        }
+    }
+
+    /**
+     * Polymer class and one letter code of a residue name.
+     */
+    private static final class ResidueType {
+        private static final ResidueType NON_POLYMER = new ResidueType('X', false);
+        private static final ResidueType UNKNOWN = new ResidueType('X', false);
+
+        /**
+         * Residues known without a ChemComp lookup.
+         */
+        private static final Map<String, ResidueType> STANDARD = new HashMap<>();
+
+        static {
+            String[] aminoAcids = {"ALA", "ARG", "ASN", "ASP", "CYS", "GLN", "GLU", "GLY",
+                    "HIS", "ILE", "LEU", "LYS", "MET", "PHE", "PRO", "SER", "THR", "TRP",
+                    "TYR", "VAL"};
+            String aminoAcidLetters = "ARNDCQEGHILKMFPSTWYV";
+            for (int i = 0; i < aminoAcids.length; i++) {
+                STANDARD.put(aminoAcids[i], new ResidueType(aminoAcidLetters.charAt(i), true));
+            }
+            for (String nucleotide : new String[]{"A", "C", "G", "U", "DA", "DC", "DG", "DT"}) {
+                STANDARD.put(nucleotide,
+                        new ResidueType(nucleotide.charAt(nucleotide.length() - 1), false));
+            }
+            STANDARD.put("HOH", NON_POLYMER);
+        }
+
+        private final char letter;
+        private final boolean aminoAcid;
+
+        private ResidueType(char letter, boolean aminoAcid) {
+            this.letter = letter;
+            this.aminoAcid = aminoAcid;
+        }
+
+        private static ResidueType of(ChemComp chemComp) {
+            if (chemComp == null || chemComp.isEmpty()) return UNKNOWN;
+            PolymerType polymerType = chemComp.getPolymerType();
+            boolean aminoAcid = PolymerType.PROTEIN_ONLY.contains(polymerType);
+            if (!aminoAcid && !PolymerType.POLYNUCLEOTIDE_ONLY.contains(polymerType)) {
+                return NON_POLYMER;
+            }
+            String code = ChemCompGroupFactory.getOneLetterCode(chemComp);
+            char letter = code == null || code.isEmpty() || code.equals("?")
+                    ? 'X' : code.charAt(0);
+            return new ResidueType(letter, aminoAcid);
+        }
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_LINE = 128;
+
+    // Outcomes of processLine.
+    private static final int CONTINUE = 0;
+    private static final int NEW_RESIDUE = 1;
+    private static final int STOP = 2;
+
+    /**
+     * Residue types of non-standard names, ChemComp lookups can be slow.
+     */
+    private final Map<String, ResidueType> residueTypes = new ConcurrentHashMap<>();
+
+    /**
+     * @return Sequences of all chains of the first model.
+     */
+    public Sequences readSequences(File pdbFile) throws IOException {
+        Sequences result = new Sequences();
+        try (InputStream in = Utils.INSTANCE.readFile(pdbFile)) {
+            read(in, result, (chainId, letter, aminoAcid, hetatm) -> {
+                result.add(chainId, letter, aminoAcid, hetatm);
+                return true;
+            });
+        }
+        return result;
+    }
+
+    /**
+     * @return Number of amino acids in the first model.
+     */
+    public int countAminoAcids(File pdbFile) throws IOException {
+        int[] count = new int[1];
+        read(pdbFile, (chainId, letter, aminoAcid, hetatm) -> {
+            if (aminoAcid) count[0]++;
+            return true;
+        });
+        return count[0];
+    }
+
+    public void read(File pdbFile, ResidueVisitor visitor) throws IOException {
+        try (InputStream in = Utils.INSTANCE.readFile(pdbFile)) {
+            read(in, null, visitor);
+        }
+    }
+
+    public void read(InputStream in, ResidueVisitor visitor) throws IOException {
+        read(in, null, visitor);
+    }
+
+    private void read(InputStream in, Sequences header, ResidueVisitor visitor)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] line = new byte[MAX_LINE];
+        // Bytes 21-26 (0-based) of the last residue: chain, number, insertion code.
+        byte[] residue = new byte[6];
+        boolean hasResidue = false;
+        int lineLength = 0;
+        int lineNumber = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                byte b = buffer[i];
+                if (b != '\n') {
+                    if (lineLength < MAX_LINE) line[lineLength] = b;
+                    lineLength++;
+                    continue;
+                }
+                lineNumber++;
+                int length = Math.min(lineLength, MAX_LINE);
+                if (length > 0 && line[length - 1] == '\r') length--;
+                lineLength = 0;
+                int result = processLine(line, length, lineNumber, residue, hasResidue,
+                        header, visitor);
+                if (result == STOP) return;
+                if (result == NEW_RESIDUE) hasResidue = true;
+            }
+        }
+        if (lineLength > 0) {
+            processLine(line, Math.min(lineLength, MAX_LINE), lineNumber + 1, residue,
+                    hasResidue, header, visitor);
+        }
+    }
+
+    private int processLine(byte[] line, int length, int lineNumber, byte[] residue,
+                            boolean hasResidue, Sequences header, ResidueVisitor visitor)
+            throws IOException {
+        boolean atom = startsWith(line, length, "ATOM  ");
+        boolean hetatm = !atom && startsWith(line, length, "HETATM");
+        if (!atom && !hetatm) {
+            // Only the first model is read.
+            if (startsWith(line, length, "ENDMDL") || (startsWith(line, length, "END")
+                    && (length == 3 || line[3] == ' '))) {
+                return STOP;
+            }
+            if (header != null && startsWith(line, length, "HEADER") && length >= 66) {
+                header.idCode = new String(line, 62, 4, "US-ASCII").trim();
+            }
+            return CONTINUE;
+        }
+        if (length < 27) {
+            throw new IOException("Malformed " + (atom ? "ATOM" : "HETATM")
+                    + " record on line " + lineNumber);
+        }
+        if (hasResidue && regionEquals(line, 21, residue)) return CONTINUE;
+        System.arraycopy(line, 21, residue, 0, residue.length);
+
+        String name = new String(line, 17, 3, "US-ASCII").trim();
+        ResidueType type = getResidueType(name);
+        if (type == ResidueType.UNKNOWN) throw new UnknownResidueException(name, lineNumber);
+        if (type == ResidueType.NON_POLYMER) return NEW_RESIDUE;
+        String chainId = String.valueOf((char) line[21]);
+        return visitor.visit(chainId, type.letter, type.aminoAcid, hetatm) ? NEW_RESIDUE : STOP;
+    }
+
+    private ResidueType getResidueType(String name) {
+        ResidueType type = ResidueType.STANDARD.get(name);
+        if (type != null) return type;
+        type = residueTypes.get(name);
+        if (type == null) {
+            type = ResidueType.of(ChemCompGroupFactory.getChemComp(name));
+            residueTypes.put(name, type);
+        }
+        return type;
+    }
+
+    private static boolean startsWith(byte[] line, int length, String prefix) {
+        if (length < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[i] != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean regionEquals(byte[] line, int offset, byte[] region) {
+        for (int i = 0; i < region.length; i++) {
+            if (line[offset + i] != region[i]) return false;
+        }
+        return true;
+    }
+}
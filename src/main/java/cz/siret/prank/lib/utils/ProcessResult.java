@@ -0,0 +1,49 @@
+package cz.siret.prank.lib.utils;
+
+/**
+ * Outcome of a process run by {@link ProcessRunner}.
+ */
+public class ProcessResult {
+    private final int exitCode;
+    private final boolean timedOut;
+    private final byte[] output;
+    private final String errorOutput;
+
+    public ProcessResult(int exitCode, boolean timedOut, byte[] output, String errorOutput) {
+        this.exitCode = exitCode;
+        this.timedOut = timedOut;
+        this.output = output;
+        this.errorOutput = errorOutput;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    public boolean isSuccess() {
+        return !timedOut && exitCode == 0;
+    }
+
+    /**
+     * @return Captured standard output, null if it was sent elsewhere.
+     */
+    public byte[] getOutput() {
+        return output;
+    }
+
+    /**
+     * @return Beginning of the standard error output.
+     */
+    public String getErrorOutput() {
+        return errorOutput;
+    }
+
+    @Override
+    public String toString() {
+        return timedOut ? "timed out" : "exit code " + exitCode;
+    }
+}
@@ -0,0 +1,190 @@
+package cz.siret.prank.lib.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs external processes with a bounded number of them alive at a time.
+ *
+ * Standard input is fed and standard output and error are drained on separate threads, so
+ * a process never blocks on a full pipe. Processes exceeding their timeout are killed.
+ * Children a killed process leaves behind (e.g. of a shell wrapper) cannot be reached on
+ * Java 8 and may keep its pipes open, so output is awaited only for a limited time after
+ * the process ends.
+ */
+public class ProcessRunner {
+    /**
+     * Amount of standard error output kept for the result.
+     */
+    private static final int MAX_ERROR_OUTPUT = 64 * 1024;
+    /**
+     * Time to wait for the rest of the output of an ended process.
+     */
+    private static final long DRAIN_TIMEOUT_MILLIS = 5_000;
+
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Semaphore slots;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "process-runner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param maxConcurrent Maximum number of processes running at the same time
+     */
+    public ProcessRunner(int maxConcurrent) {
+        this.slots = new Semaphore(Math.max(1, maxConcurrent), true);
+    }
+
+    /**
+     * Runs the process asynchronously, see {@link #run}.
+     */
+    public Future<ProcessResult> submit(ProcessBuilder processBuilder, InputStream input,
+                                        OutputStream output, long timeoutMillis) {
+        return executor.submit(() -> run(processBuilder, input, output, timeoutMillis));
+    }
+
+    /**
+     * Starts the process once a slot is free and waits for it.
+     *
+     * @param input         Data for standard input, null to close it right away
+     * @param output        Destination of standard output, null to capture it in the result
+     * @param timeoutMillis Time after which the process is killed, 0 for no limit
+     */
+    public ProcessResult run(ProcessBuilder processBuilder, InputStream input,
+                             OutputStream output, long timeoutMillis)
+            throws IOException, InterruptedException {
+        slots.acquire();
+        try {
+            return execute(processBuilder, input, output, timeoutMillis);
+        } finally {
+            slots.release();
+        }
+    }
+
+    private ProcessResult execute(ProcessBuilder processBuilder, InputStream input,
+                                  OutputStream output, long timeoutMillis)
+            throws IOException, InterruptedException {
+        Process process = processBuilder.start();
+        ByteArrayOutputStream captured = output == null ? new ByteArrayOutputStream() : null;
+        OutputStream stdoutTarget = output != null ? output : captured;
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+        Future<?> stdoutDrain = executor.submit(() -> {
+            try (InputStream stdout = process.getInputStream()) {
+                Utils.INSTANCE.copyStream(stdout, stdoutTarget);
+            }
+            return null;
+        });
+        Future<?> stderrDrain = executor.submit(() -> {
+            try (InputStream err = process.getErrorStream()) {
+                drainBounded(err, stderr);
+            }
+            return null;
+        });
+        if (input != null) {
+            executor.submit(() -> {
+                try (OutputStream stdin = process.getOutputStream()) {
+                    Utils.INSTANCE.copyStream(input, stdin);
+                } catch (IOException e) {
+                    // The process may exit without reading all of its input.
+                    logger.debug("Process did not read all of its input: {}", e.toString());
+                }
+            });
+        } else {
+            process.getOutputStream().close();
+        }
+
+        boolean finished;
+        try {
+            if (timeoutMillis > 0) {
+                finished = process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+            } else {
+                process.waitFor();
+                finished = true;
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            throw e;
+        }
+        if (!finished) {
+            logger.warn("Process {} timed out after {} ms, killing it.",
+                    processBuilder.command(), timeoutMillis);
+            process.destroyForcibly();
+            process.waitFor();
+        }
+        long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        boolean drained = awaitDrain(stdoutDrain, drainDeadline)
+                & awaitDrain(stderrDrain, drainDeadline);
+        if (!drained) {
+            logger.warn("Output of process {} still open {} ms after it ended, abandoning it.",
+                    processBuilder.command(), DRAIN_TIMEOUT_MILLIS);
+            closeQuietly(process.getInputStream());
+            closeQuietly(process.getErrorStream());
+            stdoutDrain.cancel(true);
+            stderrDrain.cancel(true);
+        }
+
+        String errorOutput = new String(stderr.toByteArray(), StandardCharsets.UTF_8);
+        int exitCode = process.exitValue();
+        if (exitCode != 0 && !errorOutput.isEmpty()) {
+            logger.warn("Process {} failed with exit code {}: {}", processBuilder.command(),
+                    exitCode, errorOutput);
+        }
+        return new ProcessResult(exitCode, !finished,
+                captured != null ? captured.toByteArray() : null, errorOutput);
+    }
+
+    /**
+     * @return false if the stream is still open at the deadline.
+     */
+    private static boolean awaitDrain(Future<?> drain, long deadline) throws IOException,
+            InterruptedException {
+        try {
+            drain.get(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // Nothing left to release.
+        }
+    }
+
+    private static void drainBounded(InputStream in, ByteArrayOutputStream out)
+            throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            int keep = Math.min(n, MAX_ERROR_OUTPUT - out.size());
+            if (keep > 0) {
+                out.write(buffer, 0, keep);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package cz.siret.prank.lib.utils;
+
+import org.biojava.nbio.structure.Group;
+
+import java.util.List;
+
+/**
+ * Byte encoding of residue one letter codes. Codes are the upper-cased ASCII letters, so two
+ * residues match exactly when their codes are equal.
+ */
+public enum ResidueAlphabet {
+    INSTANCE;
+
+    /**
+     * Code of residues without a usable one letter code.
+     */
+    public static final byte UNKNOWN = 0;
+    public static final byte GAP = '-';
+
+    public byte encode(char letter) {
+        return letter < 128 ? (byte) Character.toUpperCase(letter) : UNKNOWN;
+    }
+
+    public byte encode(String letter) {
+        return letter == null || letter.isEmpty() ? UNKNOWN : encode(letter.charAt(0));
+    }
+
+    public byte encode(Group group) {
+        return encode(group.getChemComp().getOne_letter_code());
+    }
+
+    public byte[] encode(List<Group> groups) {
+        byte[] codes = new byte[groups.size()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = encode(groups.get(i));
+        }
+        return codes;
+    }
+
+    public char decode(byte code) {
+        return code == UNKNOWN ? '?' : (char) code;
+    }
+
+    public String decode(byte[] codes) {
+        StringBuilder result = new StringBuilder(codes.length);
+        for (byte code : codes) {
+            result.append(decode(code));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,329 @@
+package cz.siret.prank.lib.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of long-lived script processes speaking a length-prefixed protocol over their
+ * standard input and output, to avoid paying interpreter startup for every request.
+ *
+ * A worker is started as {@code script --worker}. It first writes a handshake frame
+ * containing {@value #HANDSHAKE}, then serves requests until its standard input is closed.
+ * All integers are 32-bit big endian:
+ * <ul>
+ *     <li>request: payload length, payload</li>
+ *     <li>response: status (0 on success), payload length, payload (the result, or an
+ *     error message for a non-zero status)</li>
+ * </ul>
+ * Workers that die or time out are replaced. Scripts that do not complete the handshake
+ * within {@value #HANDSHAKE_TIMEOUT_MILLIS} ms are reported as unsupported, see
+ * {@link #isSupported()}. Only scripts known to implement the protocol should be given to a
+ * pool, an unaware script is run with the unknown argument until then.
+ */
+public class ScriptWorkerPool implements Closeable {
+    public static final String WORKER_ARG = "--worker";
+    public static final String HANDSHAKE = "PRANK-WORKER 1";
+    /**
+     * The handshake is written before any work, so it needs no more than interpreter startup.
+     */
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 5_000;
+    private static final int MAX_HANDSHAKE_LENGTH = 1024;
+
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final String script;
+    private final Semaphore slots;
+    private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<>();
+    private final List<Worker> all = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "script-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService watchdog =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "script-worker-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private volatile Boolean supported;
+    private volatile boolean closed;
+
+    public static class WorkerException extends IOException {
+        public WorkerException(String message) {
+            super(message);
+        }
+    }
+
+    public static class WorkerTimeoutException extends IOException {
+        public WorkerTimeoutException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private interface Request {
+        long length() throws IOException;
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private final class Worker {
+        private final Process process;
+        private final DataOutputStream in;
+        private final DataInputStream out;
+
+        private Worker(Process process) {
+            this.process = process;
+            this.in = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.out = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+    }
+
+    /**
+     * @param script Path of the script
+     * @param size   Maximum number of worker processes
+     */
+    public ScriptWorkerPool(String script, int size) {
+        this.script = new File(script).getAbsolutePath();
+        this.slots = new Semaphore(Math.max(1, size), true);
+    }
+
+    /**
+     * Starts a worker if none is running yet and checks that it completes the handshake.
+     * The answer is remembered.
+     */
+    public boolean isSupported() throws InterruptedException {
+        if (supported == null) {
+            synchronized (this) {
+                if (supported == null) {
+                    slots.acquire();
+                    try {
+                        idle.add(startWorker());
+                        supported = true;
+                    } catch (IOException e) {
+                        logger.info("Script {} does not support the worker protocol: {}",
+                                script, e.toString());
+                        supported = false;
+                    } finally {
+                        slots.release();
+                    }
+                }
+            }
+        }
+        return supported;
+    }
+
+    /**
+     * Sends a request to an idle worker, see {@link #process(byte[], long)}.
+     */
+    public Future<byte[]> submit(byte[] request, long timeoutMillis) {
+        return executor.submit(() -> process(request, timeoutMillis));
+    }
+
+    /**
+     * Sends the content of a file to an idle worker, see {@link #process(Path, long)}.
+     */
+    public Future<byte[]> submit(Path request, long timeoutMillis) {
+        return executor.submit(() -> process(request, timeoutMillis));
+    }
+
+    /**
+     * Sends a request to an idle worker, starting or restarting one when needed. A request
+     * that finds its worker dead is retried once on a fresh worker.
+     *
+     * @param timeoutMillis Time after which the worker is killed, 0 for no limit
+     * @throws WorkerException if the worker reported an error for the request
+     * @throws WorkerTimeoutException if the worker was killed for exceeding the timeout
+     */
+    public byte[] process(byte[] request, long timeoutMillis)
+            throws IOException, InterruptedException {
+        return process(new Request() {
+            @Override
+            public long length() {
+                return request.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(request);
+            }
+        }, timeoutMillis);
+    }
+
+    /**
+     * Like {@link #process(byte[], long)}, but streams the request from a file once a worker
+     * is free, so large requests are never held in memory.
+     */
+    public byte[] process(Path request, long timeoutMillis)
+            throws IOException, InterruptedException {
+        return process(new Request() {
+            @Override
+            public long length() throws IOException {
+                return Files.size(request);
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                Files.copy(request, out);
+            }
+        }, timeoutMillis);
+    }
+
+    private byte[] process(Request request, long timeoutMillis)
+            throws IOException, InterruptedException {
+        if (closed) throw new IOException("Worker pool closed.");
+        slots.acquire();
+        try {
+            for (int attempt = 0; ; attempt++) {
+                Worker worker = idle.poll();
+                if (worker == null || !worker.process.isAlive()) {
+                    if (worker != null) discard(worker);
+                    worker = startWorker();
+                }
+                try {
+                    byte[] response = exchange(worker, request, timeoutMillis);
+                    idle.add(worker);
+                    return response;
+                } catch (WorkerException e) {
+                    idle.add(worker);
+                    throw e;
+                } catch (IOException e) {
+                    discard(worker);
+                    if (attempt > 0 || closed || e instanceof WorkerTimeoutException) throw e;
+                    logger.warn("Worker of {} failed, restarting: {}", script, e.toString());
+                }
+            }
+        } finally {
+            slots.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (all) {
+            for (Worker worker : all) {
+                try {
+                    worker.in.close();
+                } catch (IOException e) {
+                    // Already gone.
+                }
+                worker.process.destroy();
+            }
+            all.clear();
+        }
+        idle.clear();
+        executor.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    private byte[] exchange(Worker worker, Request request, long timeoutMillis)
+            throws IOException {
+        long length = request.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Request of " + length + " bytes is too large.");
+        }
+        ScheduledFuture<?> kill = timeoutMillis > 0
+                ? watchdog.schedule(() -> worker.process.destroyForcibly(), timeoutMillis,
+                        TimeUnit.MILLISECONDS)
+                : null;
+        try {
+            worker.in.writeInt((int) length);
+            request.writeTo(worker.in);
+            worker.in.flush();
+            int status = worker.out.readInt();
+            byte[] payload = readFrame(worker.out, Integer.MAX_VALUE);
+            if (status != 0) {
+                throw new WorkerException("Worker of " + script + " failed with status "
+                        + status + ": " + new String(payload, StandardCharsets.UTF_8));
+            }
+            return payload;
+        } catch (IOException e) {
+            if (kill != null && kill.isDone() && !kill.isCancelled()) {
+                throw new WorkerTimeoutException("Worker of " + script + " timed out after "
+                        + timeoutMillis + " ms.", e);
+            }
+            throw e;
+        } finally {
+            if (kill != null) kill.cancel(false);
+        }
+    }
+
+    private Worker startWorker() throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder(script, WORKER_ARG);
+        processBuilder.directory(new File(script).getParentFile());
+        Worker worker = new Worker(processBuilder.start());
+        executor.submit(() -> drainErrors(worker.process.getErrorStream()));
+        synchronized (all) {
+            all.add(worker);
+        }
+        ScheduledFuture<?> kill = watchdog.schedule(() -> worker.process.destroyForcibly(),
+                HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            byte[] handshake = readFrame(worker.out, MAX_HANDSHAKE_LENGTH);
+            if (!Arrays.equals(handshake, HANDSHAKE.getBytes(StandardCharsets.US_ASCII))) {
+                throw new IOException("Unexpected handshake from " + script);
+            }
+        } catch (IOException e) {
+            discard(worker);
+            throw e;
+        } finally {
+            kill.cancel(false);
+        }
+        logger.info("Started worker of {}", script);
+        return worker;
+    }
+
+    private void discard(Worker worker) {
+        worker.process.destroyForcibly();
+        synchronized (all) {
+            all.remove(worker);
+        }
+    }
+
+    private void drainErrors(InputStream err) {
+        byte[] buffer = new byte[8192];
+        try {
+            int n;
+            while ((n = err.read(buffer)) != -1) {
+                logger.debug("{}: {}", script, new String(buffer, 0, n, StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            // The worker is gone.
+        }
+    }
+
+    private static byte[] readFrame(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+}
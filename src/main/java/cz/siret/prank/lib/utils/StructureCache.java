@@ -0,0 +1,107 @@
+package cz.siret.prank.lib.utils;
+
+import org.biojava.nbio.structure.Structure;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of parsed PDB files held by soft references, so the garbage collector reclaims them
+ * under memory pressure.
+ *
+ * Entries are keyed by absolute path and validated by modification time and size, a file
+ * that changes on disk is parsed again. Concurrent requests for the same file wait for a
+ * single parse. Cached structures are shared, callers must not modify them.
+ */
+public class StructureCache {
+
+    public interface Loader {
+        Structure load(File pdbFile) throws IOException;
+    }
+
+    private static final class Entry extends SoftReference<Structure> {
+        private final String path;
+        private final long lastModified;
+        private final long length;
+
+        private Entry(String path, long lastModified, long length, Structure structure,
+                      ReferenceQueue<Structure> queue) {
+            super(structure, queue);
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, FutureTask<Structure>> pending = new HashMap<>();
+    private final ReferenceQueue<Structure> queue = new ReferenceQueue<>();
+
+    public Structure get(File pdbFile, Loader loader) throws IOException {
+        String path = pdbFile.getAbsolutePath();
+        long lastModified = pdbFile.lastModified();
+        long length = pdbFile.length();
+        String pendingKey = path + '\0' + lastModified + '\0' + length;
+        FutureTask<Structure> task;
+        boolean own = false;
+        synchronized (this) {
+            expunge();
+            Entry entry = entries.get(path);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                Structure cached = entry.get();
+                if (cached != null) return cached;
+            }
+            task = pending.get(pendingKey);
+            if (task == null) {
+                task = new FutureTask<>(() -> loader.load(pdbFile));
+                pending.put(pendingKey, task);
+                own = true;
+            }
+        }
+        if (!own) {
+            return Utils.INSTANCE.await(task);
+        }
+        try {
+            task.run();
+            Structure structure = Utils.INSTANCE.await(task);
+            synchronized (this) {
+                entries.put(path, new Entry(path, lastModified, length, structure, queue));
+            }
+            return structure;
+        } finally {
+            synchronized (this) {
+                pending.remove(pendingKey);
+            }
+        }
+    }
+
+    /**
+     * @return Number of entries, including those already reclaimed but not yet expunged.
+     */
+    public synchronized int size() {
+        expunge();
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Drops entries whose structures were reclaimed.
+     */
+    private void expunge() {
+        Object reference;
+        while ((reference = queue.poll()) != null) {
+            Entry entry = (Entry) reference;
+            if (entries.get(entry.path) == entry) {
+                entries.remove(entry.path);
+            }
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package cz.siret.prank.lib.utils;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -22,6 +25,10 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -35,8 +42,21 @@ public enum Utils {
 
     private final transient Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * Files at least this large are compressed by {@link ParallelGzipOutputStream}.
+     */
+    public static final long PARALLEL_GZIP_THRESHOLD = 4L * 1024 * 1024;
+    /**
+     * Compressed bzip2 files at least this large are decoded by
+     * {@link ParallelBZip2InputStream}.
+     */
+    public static final long PARALLEL_BZIP2_THRESHOLD = 1024L * 1024;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private ExecutorService compressionPool;
+
     public void copyStream(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[8192];
         int len = in.read(buffer);
         while (len != -1) {
             out.write(buffer, 0, len);
@@ -80,11 +100,59 @@ public enum Utils {
     public void gzipFile(File file) throws IOException {
         Path sourceFile = Paths.get(file.getAbsolutePath());
         Path destFile = sourceFile.getParent().resolve(file.getName().concat(".gz"));
-        try(OutputStream out = new GZIPOutputStream(new FileOutputStream(destFile.toFile()))) {
+        try(OutputStream out = gzipOutputStream(new FileOutputStream(destFile.toFile()),
+                file.length())) {
             Files.copy(sourceFile, out);
         }
     }
 
+    /**
+     * @param expectedSize Expected amount of uncompressed data, large outputs are compressed
+     *                     on several threads
+     */
+    public OutputStream gzipOutputStream(OutputStream out, long expectedSize)
+            throws IOException {
+        if (expectedSize >= PARALLEL_GZIP_THRESHOLD && THREADS > 1) {
+            return new ParallelGzipOutputStream(new BufferedOutputStream(out),
+                    getCompressionPool(), THREADS);
+        }
+        return new GZIPOutputStream(out, 64 * 1024);
+    }
+
+    /**
+     * Opens a bzip2 compressed file, large files are decompressed on several threads.
+     */
+    public InputStream readBzip2File(File file) throws IOException {
+        logger.info("Reading file [{}]", file.getAbsolutePath());
+        if (file.length() >= PARALLEL_BZIP2_THRESHOLD && THREADS > 1) {
+            return new ParallelBZip2InputStream(Files.readAllBytes(file.toPath()),
+                    getCompressionPool(), THREADS);
+        }
+        return new BZip2CompressorInputStream(new BufferedInputStream(
+                new FileInputStream(file)), true);
+    }
+
+    private synchronized ExecutorService getCompressionPool() {
+        if (compressionPool == null) {
+            compressionPool = Executors.newFixedThreadPool(THREADS, r -> {
+                Thread thread = new Thread(r, "compression");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return compressionPool;
+    }
+
+    /**
+     * Writes data gzipped to destination.
+     */
+    public void gzipToFile(byte[] data, File destination) throws IOException {
+        try (OutputStream out = gzipOutputStream(new FileOutputStream(destination),
+                data.length)) {
+            out.write(data);
+        }
+    }
+
     public void gzipAndDeleteFile(File file) throws IOException {
         gzipFile(file);
         file.delete();
@@ -108,6 +176,25 @@ public enum Utils {
 
     }
 
+    /**
+     * Waits for a task and rethrows its failure as the IOException or unchecked exception it
+     * was.
+     */
+    public <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a task.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
     public <K, V> Function<K, V> mapToMapper(Map<K, V> map) {
         return (chainId) -> map.getOrDefault(chainId, null);
     }
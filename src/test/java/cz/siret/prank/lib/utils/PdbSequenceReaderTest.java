@@ -0,0 +1,118 @@
+package cz.siret.prank.lib.utils;
+
+import org.biojava.nbio.structure.Chain;
+import org.biojava.nbio.structure.GroupType;
+import org.biojava.nbio.structure.Structure;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link PdbSequenceReader} and the file based methods of {@link BioUtils} with the
+ * BioJava Structure path. Set the pranklib.test.pdbDir system property to check all PDB
+ * files of a directory as well.
+ */
+public class PdbSequenceReaderTest {
+    private static final String[] FILES = {"single_chain.pdb", "ligands_water.pdb",
+            "modified_residues.pdb", "antibody_chains.pdb", "insertion_codes.pdb",
+            "protein_dna.pdb", "two_models.pdb", "blank_chain.pdb"};
+
+    @Test
+    public void pdbToFastaMatchesStructure() throws Exception {
+        for (File file : pdbFiles()) {
+            Structure structure = BioUtils.INSTANCE.loadPdbFile(file);
+            assertEquals(file.getName(), BioUtils.INSTANCE.pdbToFasta(structure, null),
+                    BioUtils.INSTANCE.pdbToFasta(file));
+        }
+    }
+
+    @Test
+    public void proteinSizeMatchesStructure() throws Exception {
+        for (File file : pdbFiles()) {
+            Structure structure = BioUtils.INSTANCE.loadPdbFile(file);
+            assertEquals(file.getName(), BioUtils.INSTANCE.getProteinSize(structure),
+                    BioUtils.INSTANCE.getProteinSize(file));
+        }
+    }
+
+    /**
+     * Where the reader is used on its own, its sequences must be those of BioJava.
+     */
+    @Test
+    public void standardFilesMatchAtomSequences() throws Exception {
+        int checked = 0;
+        for (File file : pdbFiles()) {
+            PdbSequenceReader.Sequences sequences;
+            try {
+                sequences = PdbSequenceReader.INSTANCE.readSequences(file);
+            } catch (PdbSequenceReader.UnknownResidueException e) {
+                continue;
+            }
+            if (!sequences.hasStandardChainIds()) continue;
+            Map<String, String> expected = new LinkedHashMap<>();
+            for (Chain chain : BioUtils.INSTANCE.loadPdbFile(file).getChains()) {
+                if (!chain.getAtomGroups(GroupType.AMINOACID).isEmpty()) {
+                    expected.put(chain.getChainID(), chain.getAtomSequence());
+                }
+            }
+            assertEquals(file.getName(), expected, sequences.getSequences());
+            checked++;
+        }
+        assertTrue("No file was read without BioJava", checked > 0);
+    }
+
+    @Test
+    public void otherChainIdsAreNotStandard() throws Exception {
+        assertFalse(PdbSequenceReader.INSTANCE.readSequences(resource("antibody_chains.pdb"))
+                .hasStandardChainIds());
+        assertFalse(PdbSequenceReader.INSTANCE.readSequences(resource("blank_chain.pdb"))
+                .hasStandardChainIds());
+    }
+
+    @Test
+    public void proteinFilesPassTheCheck() throws Exception {
+        assertNull(BioUtils.INSTANCE.checkForPdbFileErrors(resource("single_chain.pdb")));
+    }
+
+    @Test
+    public void truncatedRecordsAreRejected() throws Exception {
+        File file = File.createTempFile("truncated", ".pdb");
+        try {
+            Utils.INSTANCE.stringToFile("ATOM      1  N   ALA A\nEND\n", file, false, false);
+            assertNotNull(BioUtils.INSTANCE.checkForPdbFileErrors(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static List<File> pdbFiles() throws URISyntaxException {
+        List<File> files = new ArrayList<>();
+        for (String name : FILES) {
+            files.add(resource(name));
+        }
+        String dir = System.getProperty("pranklib.test.pdbDir");
+        if (dir != null) {
+            File[] extra = new File(dir).listFiles((d, name) -> name.endsWith(".pdb")
+                    || name.endsWith(".ent") || name.endsWith(".pdb.gz")
+                    || name.endsWith(".ent.gz"));
+            if (extra != null) files.addAll(Arrays.asList(extra));
+        }
+        return files;
+    }
+
+    private static File resource(String name) throws URISyntaxException {
+        return new File(PdbSequenceReaderTest.class.getResource("/pdb/" + name).toURI());
+    }
+}